@@ -2,6 +2,7 @@ package com.pbe;
 
 import com.pbe.model.Artist;
 import com.pbe.model.Datasource;
+import com.pbe.model.DatasourceException;
 import com.pbe.model.SongArtist;
 
 import java.util.List;
@@ -12,75 +13,84 @@ public class Main {
     public static void main(String[] args) {
 
         // Create a datasource object
+        // Open it in the background: the schema check, the prepared statements and the name index are set up
+        // on other threads, and every query below only waits for what it needs
         Datasource datasource = new Datasource();
-        if(!datasource.open()) {
-            System.out.println("Can't open datasource");
-            return;
-        }
-
-        // Create list with artists via datasource queryArtists() method
-        // And pass a default sorting direction
-        List<Artist> artists = datasource.queryArtists(Datasource.ORDER_BY_ASC);
-
-        // Check if there are any artists
-        if(artists.isEmpty()) {
-            System.out.println("No artists!");
-        } else {
-            // Loop through all elements
-            for (Artist artist : artists) {
-                System.out.println("ID = " + artist.getId() + ", Name = " + artist.getName());
+        datasource.openAsync().thenAccept(opened -> {
+            if (!opened) {
+                System.out.println("Can't open datasource");
+            }
+        });
+
+        // The queries never return null: nothing found is an empty list, a failure throws a DatasourceException
+        // (also when the datasource couldn't be opened)
+        try {
+            // Create list with artists via datasource queryArtists() method
+            // And pass a default sorting direction
+            List<Artist> artists = datasource.queryArtists(Datasource.ORDER_BY_ASC);
+
+            // Check if there are any artists
+            if(artists.isEmpty()) {
+                System.out.println("No artists!");
+            } else {
+                // Loop through all elements
+                for (Artist artist : artists) {
+                    System.out.println("ID = " + artist.getId() + ", Name = " + artist.getName());
+                }
             }
-        }
 
-        // Check albums by artist name
-        List<String> albumsForArtist =
-                datasource.queryAlbumsForArtist("Pink Floyd", Datasource.ORDER_BY_ASC);
+            // Check albums by artist name
+            List<String> albumsForArtist =
+                    datasource.queryAlbumsForArtist("Pink Floyd", Datasource.ORDER_BY_ASC);
 
-        for(String album : albumsForArtist) {
-            System.out.println(album);
-        }
+            for(String album : albumsForArtist) {
+                System.out.println(album);
+            }
 
-        // Check which artist and album belong to a specific song
-        List<SongArtist> songArtists =
-                datasource.queryArtistForSong("She's On Fire", Datasource.ORDER_BY_ASC);
+            // Check which artist and album belong to a specific song
+            List<SongArtist> songArtists =
+                    datasource.queryArtistForSong("She's On Fire", Datasource.ORDER_BY_ASC);
 
-        if(songArtists.isEmpty()) {
-            System.out.println("Couldn't find the artist for the song");
-            return;
-        }
+            if(songArtists.isEmpty()) {
+                System.out.println("Couldn't find the artist for the song");
+                return;
+            }
 
-        for (SongArtist artist : songArtists) {
-            System.out.println(" Artist name = " + artist.getArtistName() +
-                    "\n Album name = " + artist.getAlbumName() +
-                    "\n Track = " + artist.getTrack());
-        }
+            for (SongArtist artist : songArtists) {
+                System.out.println(" Artist name = " + artist.getArtistName() +
+                        "\n Album name = " + artist.getAlbumName() +
+                        "\n Track = " + artist.getTrack());
+            }
 
-        //datasource.querySongsMetadata();
+            //datasource.querySongsMetadata();
 
-        int count = datasource.getCount(Datasource.TABLE_SONGS);
-        System.out.println("Number of songs is: " + count);
+            int count = datasource.getCount(Datasource.TABLE_SONGS);
+            System.out.println("Number of songs is: " + count);
 
-        // Working with a view
-        datasource.createViewForSongArtists();
+            // Working with a view (created by the schema check when opening, see Datasource.ensureSchema())
 
-        // Accept user input to experiment with SQL injection attack
-        Scanner scanner = new Scanner(System.in);
-        System.out.println("Enter a song title: ");
-        String title = scanner.nextLine();
+            // Accept user input to experiment with SQL injection attack
+            Scanner scanner = new Scanner(System.in);
+            System.out.println("Enter a song title: ");
+            String title = scanner.nextLine();
 
-        songArtists = datasource.querySongInfoView(title);
-        if(songArtists.isEmpty()) {
-            System.out.println("Couldn't find the artist for the song");
-            return;
-        }
+            songArtists = datasource.querySongInfoView(title);
+            if(songArtists.isEmpty()) {
+                System.out.println("Couldn't find the artist for the song");
+                return;
+            }
 
-        for(SongArtist artist : songArtists) {
-            System.out.println("FROM VIEW - Artist name = " + artist.getArtistName() +
-                    " Album name = " + artist.getAlbumName() +
-                    " Track number = " + artist.getTrack());
+            for(SongArtist artist : songArtists) {
+                System.out.println("FROM VIEW - Artist name = " + artist.getArtistName() +
+                        " Album name = " + artist.getAlbumName() +
+                        " Track number = " + artist.getTrack());
+            }
+        } catch (DatasourceException e) {
+            System.out.println("Query failed: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            // Closing datasource
+            datasource.close();
         }
-
-        // Closing datasource
-        datasource.close();
     }
-}
\ No newline at end of file
+}
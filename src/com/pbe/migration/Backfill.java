@@ -0,0 +1,20 @@
+package com.pbe.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+// *********************
+// Chunked data backfill
+// *********************
+// Changes the existing rows of a table a chunk at a time, in _id order (a 'keyset' cursor).
+// After every chunk, SchemaMigrator saves the last _id in the same transaction as the changes,
+// so after a crash it continues right after the last committed chunk, without doing any rows twice.
+public interface Backfill {
+
+    // ******
+    // Process at most 'limit' rows with an _id greater than 'afterId'
+    // Runs inside a transaction, which the migrator commits
+    // Returns the _id of the last processed row, or -1 if there were no rows left (the backfill is done)
+    // ******
+    long backfillChunk(Connection conn, long afterId, int limit) throws SQLException;
+}
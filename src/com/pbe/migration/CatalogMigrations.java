@@ -0,0 +1,150 @@
+package com.pbe.migration;
+
+import com.pbe.model.Datasource;
+import com.pbe.model.ListeningEventStore;
+import com.pbe.model.NameIndex;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+// *********************
+// Migrations of the music catalog
+// *********************
+// Every schema change of the catalog gets a new migration here, with the next version number.
+// Never change a migration that may already have been applied somewhere: add a new one instead.
+public class CatalogMigrations {
+
+    public static final String COLUMN_ARTIST_NAME_NORMALIZED = Datasource.COLUMN_ARTIST_NAME_NORMALIZED;
+
+    public static final String INDEX_ALBUMS_ARTIST = "idx_albums_artist";
+    public static final String INDEX_SONGS_ALBUM = "idx_songs_album";
+    public static final String INDEX_SONGS_TITLE = "idx_songs_title";
+    public static final String INDEX_ARTISTS_NAME_NORMALIZED = "idx_artists_name_normalized";
+
+    private CatalogMigrations() {
+    }
+
+    public static List<Migration> all() {
+        return Arrays.asList(
+                new BaseSchema(),
+                new JoinAndLookupIndexes(),
+                new NormalizedArtistNames(),
+                new PlayRollups());
+    }
+
+    // ******
+    // Version 1: the tables and the view as they've always been
+    // "IF NOT EXISTS", so an existing music.db is simply adopted at version 1
+    // ******
+    static class BaseSchema extends Migration {
+        BaseSchema() {
+            super(1, "base catalog schema");
+        }
+
+        @Override
+        public void migrate(Statement statement) throws SQLException {
+            statement.execute(Datasource.CREATE_TABLE_ARTISTS);
+            statement.execute(Datasource.CREATE_TABLE_ALBUMS);
+            statement.execute(Datasource.CREATE_TABLE_SONGS);
+            statement.execute(Datasource.CREATE_ARTIST_FOR_SONG_VIEW);
+        }
+    }
+
+    // ******
+    // Version 2: indexes for the joins of artist_list and for looking up songs by title
+    // ******
+    static class JoinAndLookupIndexes extends Migration {
+        JoinAndLookupIndexes() {
+            super(2, "indexes on albums.artist, songs.album and songs.title");
+        }
+
+        @Override
+        public void migrate(Statement statement) throws SQLException {
+            statement.execute(createIndex(INDEX_ALBUMS_ARTIST, Datasource.TABLE_ALBUMS, Datasource.COLUMN_ALBUM_ARTIST));
+            statement.execute(createIndex(INDEX_SONGS_ALBUM, Datasource.TABLE_SONGS, Datasource.COLUMN_SONG_ALBUM));
+            statement.execute(createIndex(INDEX_SONGS_TITLE, Datasource.TABLE_SONGS, Datasource.COLUMN_SONG_TITLE));
+        }
+    }
+
+    // ******
+    // Version 3: artists.name_normalized, the artist name as NameIndex normalizes it
+    // The column is added right away (cheap: SQLite only changes the table definition),
+    // filled in by the backfill, and indexed at the end, so the backfill doesn't have to update the index too.
+    // New artists get it from the insert itself: a Datasource fills it in as soon as the column exists, also when
+    // it was opened before this migration ran (see Datasource.INSERT_ARTIST_NORMALIZED), and so does the
+    // CatalogGenerator.
+    // ******
+    static class NormalizedArtistNames extends Migration {
+        // SELECT _id, name FROM artists WHERE _id > ? ORDER BY _id LIMIT ?
+        private static final String QUERY_CHUNK = "SELECT " + Datasource.COLUMN_ARTIST_ID + ", " +
+                Datasource.COLUMN_ARTIST_NAME + " FROM " + Datasource.TABLE_ARTISTS +
+                " WHERE " + Datasource.COLUMN_ARTIST_ID + " > ? ORDER BY " + Datasource.COLUMN_ARTIST_ID + " LIMIT ?";
+
+        // UPDATE artists SET name_normalized = ? WHERE _id = ?
+        private static final String UPDATE_NORMALIZED = "UPDATE " + Datasource.TABLE_ARTISTS +
+                " SET " + COLUMN_ARTIST_NAME_NORMALIZED + " = ? WHERE " + Datasource.COLUMN_ARTIST_ID + " = ?";
+
+        NormalizedArtistNames() {
+            super(3, "artists.name_normalized");
+        }
+
+        @Override
+        public void migrate(Statement statement) throws SQLException {
+            statement.execute("ALTER TABLE " + Datasource.TABLE_ARTISTS + " ADD COLUMN " +
+                    COLUMN_ARTIST_NAME_NORMALIZED + " TEXT");
+        }
+
+        @Override
+        public Backfill getBackfill() {
+            return (conn, afterId, limit) -> {
+                long last = -1;
+                try (PreparedStatement query = conn.prepareStatement(QUERY_CHUNK);
+                     PreparedStatement update = conn.prepareStatement(UPDATE_NORMALIZED)) {
+                    query.setLong(1, afterId);
+                    query.setInt(2, limit);
+                    try (ResultSet results = query.executeQuery()) {
+                        while (results.next()) {
+                            last = results.getLong(1);
+                            update.setString(1, NameIndex.normalize(results.getString(2)));
+                            update.setLong(2, last);
+                            update.addBatch();
+                        }
+                    }
+                    update.executeBatch();
+                }
+                return last;
+            };
+        }
+
+        @Override
+        public void finish(Statement statement) throws SQLException {
+            statement.execute(createIndex(INDEX_ARTISTS_NAME_NORMALIZED, Datasource.TABLE_ARTISTS,
+                    COLUMN_ARTIST_NAME_NORMALIZED));
+        }
+    }
+
+    // ******
+    // Version 4: the play count rollups of the ListeningEventStore
+    // The raw events aren't in here: they go into a table per day, which the store creates when it's first needed
+    // ******
+    static class PlayRollups extends Migration {
+        PlayRollups() {
+            super(4, "plays_per_minute and plays_per_hour");
+        }
+
+        @Override
+        public void migrate(Statement statement) throws SQLException {
+            statement.execute(ListeningEventStore.CREATE_TABLE_PLAYS_PER_MINUTE);
+            statement.execute(ListeningEventStore.CREATE_TABLE_PLAYS_PER_HOUR);
+        }
+    }
+
+    private static String createIndex(String index, String table, String column) {
+        return "CREATE INDEX IF NOT EXISTS " + index + " ON " + table + " (" + column + ")";
+    }
+}
@@ -0,0 +1,47 @@
+package com.pbe.migration;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// *********************
+// A single schema migration
+// *********************
+// A migration takes the database from version - 1 to version. It has up to three parts:
+// 1. migrate(): the schema change itself (CREATE / ALTER ...). Runs in one transaction, together with
+//    recording the new version, so it's either applied and recorded, or not applied at all.
+//    Keep it quick: it holds the write lock for its whole duration.
+// 2. getBackfill(): an optional data change for the existing rows (e.g. filling a new column).
+//    Runs in small chunks, each in its own transaction, see SchemaMigrator.
+// 3. finish(): optional schema change that needs the backfilled data (e.g. an index on the new column),
+//    or that would slow the backfill down.
+// The schema change of a migration can be applied while an earlier migration is still backfilling
+// (see SchemaMigrator.migrateSchema()), so it mustn't depend on the data of an earlier backfill: put that
+// in finish(), which always runs in version order.
+public abstract class Migration {
+
+    private final int version;
+    private final String description;
+
+    protected Migration(int version, String description) {
+        this.version = version;
+        this.description = description;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public abstract void migrate(Statement statement) throws SQLException;
+
+    // null if there's no data to change
+    public Backfill getBackfill() {
+        return null;
+    }
+
+    public void finish(Statement statement) throws SQLException {
+    }
+}
@@ -0,0 +1,406 @@
+package com.pbe.migration;
+
+import com.pbe.model.Datasource;
+import com.pbe.model.RetryPolicy;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+// *********************
+// Schema migrations
+// *********************
+// Brings a database up to date by applying the migrations it hasn't had yet, in version order.
+// The schema_version table records, per version, whether the migration is done or still backfilling,
+// and how far the backfill got:
+// - A new migration: its schema change and its schema_version row are committed in one transaction
+// - Its backfill runs in chunks. Each chunk commits its rows together with the new backfill position,
+//   so after a crash or restart it continues where it stopped
+// - When the backfill is done, finish() runs and the migration is marked done
+//
+// Staying out of the way of the application
+// SQLite has a single writer: while a chunk's transaction is open, other writers wait, and at commit time
+// readers wait too (outside WAL mode). So the chunks are kept short:
+// - The chunk size adapts, so a chunk takes about 'targetChunkMillis'
+// - Between chunks the migrator pauses, so waiting queries and writes get their turn
+// - A chunk that finds the database busy is rolled back, and tried again later with half the rows
+// The migrations can run on a background thread (migrateAsync()) while the application serves requests.
+// A Datasource does that when it starts up: it only applies the schema changes itself (migrateSchema()),
+// so its statements can be prepared, and leaves the backfills to migrateAsync().
+//
+// Usage: SchemaMigrator [database file]   applies the catalog migrations (CatalogMigrations)
+public class SchemaMigrator {
+
+    public static final String TABLE_SCHEMA_VERSION = "schema_version";
+    public static final String COLUMN_VERSION = "version";
+    public static final String COLUMN_DESCRIPTION = "description";
+    public static final String COLUMN_STATE = "state";
+    public static final String COLUMN_BACKFILL_POSITION = "backfill_position";
+    public static final String COLUMN_UPDATED_AT = "updated_at";
+
+    public static final String STATE_BACKFILLING = "backfilling";
+    public static final String STATE_DONE = "done";
+
+    public static final String CREATE_TABLE_SCHEMA_VERSION = "CREATE TABLE IF NOT EXISTS " + TABLE_SCHEMA_VERSION +
+            " (" + COLUMN_VERSION + " INTEGER PRIMARY KEY, " + COLUMN_DESCRIPTION + " TEXT NOT NULL, " +
+            COLUMN_STATE + " TEXT NOT NULL, " + COLUMN_BACKFILL_POSITION + " INTEGER NOT NULL DEFAULT 0, " +
+            COLUMN_UPDATED_AT + " INTEGER NOT NULL)";
+
+    public static final String INSERT_VERSION = "INSERT INTO " + TABLE_SCHEMA_VERSION +
+            " (" + COLUMN_VERSION + ", " + COLUMN_DESCRIPTION + ", " + COLUMN_STATE + ", " + COLUMN_UPDATED_AT +
+            ") VALUES (?, ?, ?, ?)";
+
+    public static final String UPDATE_BACKFILL_POSITION = "UPDATE " + TABLE_SCHEMA_VERSION +
+            " SET " + COLUMN_BACKFILL_POSITION + " = ?, " + COLUMN_UPDATED_AT + " = ? WHERE " + COLUMN_VERSION + " = ?";
+
+    public static final String UPDATE_STATE = "UPDATE " + TABLE_SCHEMA_VERSION +
+            " SET " + COLUMN_STATE + " = ?, " + COLUMN_UPDATED_AT + " = ? WHERE " + COLUMN_VERSION + " = ?";
+
+    public static final int DEFAULT_INITIAL_CHUNK_SIZE = 500;
+    public static final int MIN_CHUNK_SIZE = 10;
+    public static final int MAX_CHUNK_SIZE = 20_000;
+    public static final long DEFAULT_TARGET_CHUNK_MILLIS = 50;
+    public static final long DEFAULT_PAUSE_MILLIS = 20;
+
+    // Print the backfill progress at most this often
+    private static final long PROGRESS_INTERVAL_NANOS = 5_000_000_000L;
+
+    private final String connectionString;
+    private final List<Migration> migrations;
+
+    private int initialChunkSize = DEFAULT_INITIAL_CHUNK_SIZE;
+    private long targetChunkMillis = DEFAULT_TARGET_CHUNK_MILLIS;
+    private long pauseMillis = DEFAULT_PAUSE_MILLIS;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+
+    public static void main(String[] args) {
+        String connectionString = args.length > 0 ? "jdbc:sqlite:" + args[0] : Datasource.CONNECTION_STRING;
+        SchemaMigrator migrator = new SchemaMigrator(connectionString, CatalogMigrations.all());
+        if (migrator.migrate()) {
+            System.out.println("Database is at version " + migrator.getCurrentVersion());
+        }
+    }
+
+    public SchemaMigrator(String connectionString, List<Migration> migrations) {
+        this.connectionString = connectionString;
+        this.migrations = new ArrayList<>(migrations);
+        this.migrations.sort(Comparator.comparingInt(Migration::getVersion));
+        for (int i = 1; i < this.migrations.size(); i++) {
+            if (this.migrations.get(i).getVersion() == this.migrations.get(i - 1).getVersion()) {
+                throw new IllegalArgumentException("Duplicate migration version " + this.migrations.get(i).getVersion());
+            }
+        }
+    }
+
+    public void setInitialChunkSize(int initialChunkSize) {
+        this.initialChunkSize = initialChunkSize;
+    }
+
+    // How long a single backfill transaction should take (the chunk size is adjusted to it)
+    public void setTargetChunkMillis(long targetChunkMillis) {
+        this.targetChunkMillis = targetChunkMillis;
+    }
+
+    // Pause between two backfill chunks, to let other connections at the database
+    public void setPauseMillis(long pauseMillis) {
+        this.pauseMillis = pauseMillis;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    // ******
+    // Apply all migrations that aren't done yet, and finish the ones that were interrupted
+    // ******
+    public boolean migrate() {
+        try (Connection conn = DriverManager.getConnection(connectionString)) {
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("PRAGMA busy_timeout = " + Datasource.DEFAULT_BUSY_TIMEOUT_MILLIS);
+            }
+            return migrate(conn);
+        } catch (SQLException e) {
+            System.out.println("Migration failed: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // ******
+    // Same as migrate(), on a connection that's already open
+    // Used by a Datasource on an in-memory database: another connection would get a different (empty) database.
+    // ******
+    public boolean migrate(Connection conn) {
+        try {
+            Map<Integer, Long> backfilling = new HashMap<>();
+            Set<Integer> done = new HashSet<>();
+            readState(conn, done, backfilling);
+
+            for (Migration migration : migrations) {
+                int version = migration.getVersion();
+                if (done.contains(version)) {
+                    continue;
+                }
+                long position = 0;
+                if (backfilling.containsKey(version)) {
+                    position = backfilling.get(version);
+                    System.out.format("Resuming migration %d (%s) after _id %d\n",
+                            version, migration.getDescription(), position);
+                } else {
+                    System.out.format("Applying migration %d (%s)\n", version, migration.getDescription());
+                    applySchemaChange(conn, migration);
+                }
+                if (migration.getBackfill() != null) {
+                    backfill(conn, migration, position);
+                }
+                finish(conn, migration);
+            }
+            return true;
+
+        } catch (SQLException e) {
+            System.out.println("Migration failed: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Migration interrupted, it will resume on the next run");
+            return false;
+        }
+    }
+
+    // ******
+    // Apply the schema changes only, leaving the backfills to migrate() or migrateAsync()
+    // Applies the schema change of every migration that hasn't had it yet, in version order (e.g. new tables and
+    // columns). A migration without a backfill is finished straight away too, unless an earlier one is still
+    // backfilling: finish() runs in version order, so then migrate() finishes it after the earlier backfill.
+    // Used when starting up (by a Datasource and the ListeningEventStore): the tables and columns their statements
+    // need exist afterwards, without their first queries waiting for a backfill.
+    // Returns true if the database is completely migrated, false if there are backfills left.
+    // ******
+    public boolean migrateSchema(Connection conn) throws SQLException {
+        try {
+            Map<Integer, Long> backfilling = new HashMap<>();
+            Set<Integer> done = new HashSet<>();
+            readState(conn, done, backfilling);
+
+            boolean complete = true;
+            for (Migration migration : migrations) {
+                int version = migration.getVersion();
+                if (done.contains(version)) {
+                    continue;
+                }
+                if (!backfilling.containsKey(version)) {
+                    System.out.format("Applying migration %d (%s)\n", version, migration.getDescription());
+                    applySchemaChange(conn, migration);
+                    if (complete && migration.getBackfill() == null) {
+                        finish(conn, migration);
+                        continue;
+                    }
+                }
+                complete = false; // backfilling, or waiting to be finished after an earlier backfill
+            }
+            return complete;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Schema migration interrupted", e);
+        }
+    }
+
+    // ******
+    // Run migrate() on a background thread
+    // ******
+    public CompletableFuture<Boolean> migrateAsync() {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        Thread thread = new Thread(() -> result.complete(migrate()), "schema-migrator");
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    // ******
+    // Highest version that is completely done, 0 for a database without migrations, -1 if it can't be read
+    // ******
+    public int getCurrentVersion() {
+        try (Connection conn = DriverManager.getConnection(connectionString);
+             Statement statement = conn.createStatement()) {
+            statement.execute(CREATE_TABLE_SCHEMA_VERSION);
+            try (ResultSet results = statement.executeQuery("SELECT MAX(" + COLUMN_VERSION + ") FROM " +
+                    TABLE_SCHEMA_VERSION + " WHERE " + COLUMN_STATE + " = '" + STATE_DONE + "'")) {
+                return results.next() ? results.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            System.out.println("Couldn't read schema version: " + e.getMessage());
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    // Version of the last of the migrations, which a completely migrated database is at
+    public int getLatestVersion() {
+        return migrations.isEmpty() ? 0 : migrations.get(migrations.size() - 1).getVersion();
+    }
+
+    // ******
+    // Read which migrations are done, and how far the ones that are still backfilling got
+    // ******
+    private void readState(Connection conn, Set<Integer> done, Map<Integer, Long> backfilling) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            statement.execute(CREATE_TABLE_SCHEMA_VERSION);
+        }
+        try (Statement statement = conn.createStatement();
+             ResultSet results = statement.executeQuery("SELECT " + COLUMN_VERSION + ", " + COLUMN_STATE + ", " +
+                     COLUMN_BACKFILL_POSITION + " FROM " + TABLE_SCHEMA_VERSION)) {
+            while (results.next()) {
+                if (STATE_DONE.equals(results.getString(2))) {
+                    done.add(results.getInt(1));
+                } else {
+                    backfilling.put(results.getInt(1), results.getLong(3));
+                }
+            }
+        }
+    }
+
+    // The schema change and its schema_version row in a single transaction
+    private void applySchemaChange(Connection conn, Migration migration)
+            throws SQLException, InterruptedException {
+        inTransaction(conn, () -> {
+            try (Statement statement = conn.createStatement()) {
+                migration.migrate(statement);
+            }
+            try (PreparedStatement insert = conn.prepareStatement(INSERT_VERSION)) {
+                insert.setInt(1, migration.getVersion());
+                insert.setString(2, migration.getDescription());
+                insert.setString(3, STATE_BACKFILLING);
+                insert.setLong(4, System.currentTimeMillis());
+                insert.executeUpdate();
+            }
+            return 0L;
+        });
+    }
+
+    private void finish(Connection conn, Migration migration) throws SQLException, InterruptedException {
+        inTransaction(conn, () -> {
+            try (Statement statement = conn.createStatement()) {
+                migration.finish(statement);
+            }
+            try (PreparedStatement update = conn.prepareStatement(UPDATE_STATE)) {
+                update.setString(1, STATE_DONE);
+                update.setLong(2, System.currentTimeMillis());
+                update.setInt(3, migration.getVersion());
+                update.executeUpdate();
+            }
+            return 0L;
+        });
+        System.out.format("Migration %d done\n", migration.getVersion());
+    }
+
+    // ******
+    // Run the backfill chunk by chunk, from the saved position until there are no rows left
+    // ******
+    private void backfill(Connection conn, Migration migration, long position)
+            throws SQLException, InterruptedException {
+        Backfill backfill = migration.getBackfill();
+        int chunkSize = initialChunkSize;
+        long chunks = 0;
+        long lastProgress = System.nanoTime();
+
+        while (true) {
+            int limit = chunkSize;
+            long after = position;
+            long start = System.nanoTime();
+            long last;
+            try {
+                last = inTransaction(conn, () -> {
+                    long chunkLast = backfill.backfillChunk(conn, after, limit);
+                    if (chunkLast >= 0) {
+                        try (PreparedStatement update = conn.prepareStatement(UPDATE_BACKFILL_POSITION)) {
+                            update.setLong(1, chunkLast);
+                            update.setLong(2, System.currentTimeMillis());
+                            update.setInt(3, migration.getVersion());
+                            update.executeUpdate();
+                        }
+                    }
+                    return chunkLast;
+                });
+            } catch (SQLException e) {
+                if (!RetryPolicy.isBusy(e) || chunkSize == MIN_CHUNK_SIZE) {
+                    throw e;
+                }
+                // Still busy after retrying: the application is writing a lot, take smaller bites
+                chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize / 2);
+                Thread.sleep(retryPolicy.getMaxBackoffMillis());
+                continue;
+            }
+            if (last < 0) {
+                break;
+            }
+            position = last;
+            chunks++;
+
+            // Aim for chunks of about targetChunkMillis: long enough to be efficient, short enough not to block
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            if (millis > targetChunkMillis) {
+                chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize / 2);
+            } else if (millis < targetChunkMillis / 2) {
+                chunkSize = Math.min(MAX_CHUNK_SIZE, chunkSize * 2);
+            }
+
+            if (System.nanoTime() - lastProgress > PROGRESS_INTERVAL_NANOS) {
+                System.out.format("Migration %d: %d chunks, up to _id %d, chunk size %d\n",
+                        migration.getVersion(), chunks, position, chunkSize);
+                lastProgress = System.nanoTime();
+            }
+
+            // Give the application's queries and writes their turn
+            Thread.sleep(pauseMillis);
+        }
+    }
+
+    private interface TransactionWork {
+        long run() throws SQLException;
+    }
+
+    // ******
+    // Run the work in a transaction, and run it again (after a back-off) when the database is busy
+    // ******
+    private long inTransaction(Connection conn, TransactionWork work) throws SQLException, InterruptedException {
+        int attempt = 1;
+        while (true) {
+            try {
+                conn.setAutoCommit(false);
+                long result = work.run();
+                conn.commit();
+                return result;
+            } catch (SQLException e) {
+                try {
+                    conn.rollback();
+                } catch (SQLException e2) {
+                    System.out.println("Rollback failed: " + e2.getMessage());
+                }
+                if (!retryPolicy.shouldRetry(e, attempt)) {
+                    throw e;
+                }
+                Thread.sleep(retryPolicy.backoffMillis(attempt));
+                attempt++;
+            } finally {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    System.out.println("Couldn't reset auto-commit! " + e.getMessage());
+                }
+            }
+        }
+    }
+}
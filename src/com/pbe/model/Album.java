@@ -1,6 +1,10 @@
 package com.pbe.model;
 
-public class Album {
+import java.io.Serializable;
+
+public class Album implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private int id;
     private String name;
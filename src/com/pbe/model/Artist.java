@@ -1,6 +1,10 @@
 package com.pbe.model;
 
-public class Artist {
+import java.io.Serializable;
+
+public class Artist implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private int id;
     private String name;
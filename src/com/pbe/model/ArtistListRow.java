@@ -0,0 +1,37 @@
+package com.pbe.model;
+
+import java.io.Serializable;
+
+// A row of the artist_list view: artist name, album name, track and song title
+public class ArtistListRow implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String artistName;
+    private final String albumName;
+    private final int track;
+    private final String title;
+
+    public ArtistListRow(String artistName, String albumName, int track, String title) {
+        this.artistName = artistName;
+        this.albumName = albumName;
+        this.track = track;
+        this.title = title;
+    }
+
+    public String getArtistName() {
+        return artistName;
+    }
+
+    public String getAlbumName() {
+        return albumName;
+    }
+
+    public int getTrack() {
+        return track;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+}
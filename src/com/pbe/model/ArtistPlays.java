@@ -0,0 +1,37 @@
+package com.pbe.model;
+
+import java.io.Serializable;
+
+// An artist with the number of times their songs were played in a time window (see ListeningEventStore)
+public class ArtistPlays implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int artistId;
+    private String name;
+    private long plays;
+
+    public int getArtistId() {
+        return artistId;
+    }
+
+    public void setArtistId(int artistId) {
+        this.artistId = artistId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getPlays() {
+        return plays;
+    }
+
+    public void setPlays(long plays) {
+        this.plays = plays;
+    }
+}
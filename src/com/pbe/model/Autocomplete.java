@@ -0,0 +1,295 @@
+package com.pbe.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// *********************
+// Prefix autocomplete
+// *********************
+// Type-ahead over artist names or song titles, without a LIKE 'abc%' query per keystroke.
+//
+// All names are loaded once into a trie (prefix tree): every character of a (normalized) name is a node,
+// so all names starting with "pin" sit below the path p -> i -> n.
+// The top-K most popular names below a node are kept at the nodes where the names split up: the root, the
+// nodes with more than one child, and the nodes where a name ends. A node in between has exactly the same
+// names below it as its only child, so it has no list of its own and uses the one further down.
+// Most of a name's nodes are such in-between nodes (the part of the name no other name shares), so only a
+// small part of the nodes has a list.
+// Answering a prefix query is walking down the prefix (one step per typed character), then on down to the
+// first node with a list. No searching or sorting is needed at query time.
+//
+// Names are normalized with NameIndex.normalize, so "beyo" also matches Beyonce written with an accent,
+// and "PINK" matches "Pink Floyd". The original spelling is returned.
+//
+// A Datasource keeps the autocompletes made by forArtists() and forSongs() up to date: every song it inserts
+// adds 1 to its artist and its title.
+//
+// Popularity can only go up (add() with a higher weight, or increment()).
+// That's what type-ahead needs (play counts, number of recordings), and it keeps updates cheap:
+// an entry never has to be replaced by a name that wasn't in a node's top-K before.
+public class Autocomplete {
+
+    public static final int DEFAULT_TOP_K = 10;
+
+    // A suggestion: the name as shown to the user and its popularity
+    public static final class Suggestion {
+        private final String name;
+        private final long weight;
+
+        private Suggestion(String name, long weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+    }
+
+    private static final Suggestion[] NO_SUGGESTIONS = new Suggestion[0];
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    // Trie node
+    // The children are kept in a sorted char array with a parallel array of nodes (binary searched),
+    // which uses far less memory than a map per node
+    private static final class Node {
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private boolean end; // a name ends here
+        private Suggestion[] top; // sorted on weight, highest first; null if the node has a single child and no end
+
+        private boolean keepsTop() {
+            return end || children.length > 1;
+        }
+
+        private Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        private Node addChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            int insertAt = -i - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            newKeys[insertAt] = c;
+            newChildren[insertAt] = new Node();
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[insertAt];
+        }
+    }
+
+    private final int topK;
+    private final Node root = new Node();
+    private final Map<String, Long> weights = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public Autocomplete() {
+        this(DEFAULT_TOP_K);
+    }
+
+    public Autocomplete(int topK) {
+        if (topK < 1) {
+            throw new IllegalArgumentException("topK must be at least 1, got " + topK);
+        }
+        this.topK = topK;
+        root.top = NO_SUGGESTIONS; // the root always keeps a top-K, also when there's only one name
+    }
+
+    // ******
+    // Autocomplete over all artist names, ranked by their number of songs
+    // Throws a DatasourceException if the names couldn't be read
+    // ******
+    public static Autocomplete forArtists(Datasource datasource, int topK) {
+        Autocomplete autocomplete = load(datasource.queryArtistPopularity(), topK);
+        datasource.setArtistAutocomplete(autocomplete);
+        return autocomplete;
+    }
+
+    // ******
+    // Autocomplete over all song titles, ranked by the number of recordings of the title
+    // Throws a DatasourceException if the titles couldn't be read
+    // ******
+    public static Autocomplete forSongs(Datasource datasource, int topK) {
+        Autocomplete autocomplete = load(datasource.querySongPopularity(), topK);
+        datasource.setSongAutocomplete(autocomplete);
+        return autocomplete;
+    }
+
+    private static Autocomplete load(Map<String, Integer> popularity, int topK) {
+        Autocomplete autocomplete = new Autocomplete(topK);
+        for (Map.Entry<String, Integer> entry : popularity.entrySet()) {
+            autocomplete.add(entry.getKey(), entry.getValue());
+        }
+        return autocomplete;
+    }
+
+    // ******
+    // Add a name, or raise the popularity of a name that's already known
+    // A lower weight than the current one is ignored
+    // ******
+    public void add(String name, long weight) {
+        lock.writeLock().lock();
+        try {
+            Long current = weights.get(name);
+            if (current != null && current >= weight) {
+                return;
+            }
+            weights.put(name, weight);
+            update(name, weight);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ******
+    // Raise the popularity of a name by 1 (e.g. a new song for an artist)
+    // ******
+    public void increment(String name) {
+        lock.writeLock().lock();
+        try {
+            long weight = weights.getOrDefault(name, 0L) + 1;
+            weights.put(name, weight);
+            update(name, weight);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ******
+    // The most popular names starting with the prefix (at most topK), most popular first
+    // ******
+    public List<Suggestion> suggest(String prefix) {
+        String key = NameIndex.normalize(prefix);
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            for (int i = 0; i < key.length() && node != null; i++) {
+                node = node.child(key.charAt(i));
+            }
+            if (node == null) {
+                return Collections.emptyList();
+            }
+            while (node.top == null) {
+                node = node.children[0]; // same names below it, see the class comment
+            }
+            return Collections.unmodifiableList(Arrays.asList(node.top));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Convenience method, returning just the names
+    public List<String> suggestNames(String prefix) {
+        List<Suggestion> suggestions = suggest(prefix);
+        List<String> names = new ArrayList<>(suggestions.size());
+        for (Suggestion suggestion : suggestions) {
+            names.add(suggestion.getName());
+        }
+        return names;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return weights.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ******
+    // Walk down the path of the name, and update the top-K of every node on the way that keeps one
+    // The path is created first. A node that only starts to keep a top-K now (a second child, or the end of
+    // this name) gets the list of the names that were below it already, which is the list further down its
+    // one other child.
+    // ******
+    private void update(String name, long weight) {
+        Suggestion suggestion = new Suggestion(name, weight);
+        String key = NameIndex.normalize(name);
+        Node[] path = new Node[key.length() + 1];
+        path[0] = root;
+        for (int i = 0; i < key.length(); i++) {
+            Node parent = path[i];
+            Node existing = parent.child(key.charAt(i));
+            Node only = parent.children.length == 1 ? parent.children[0] : null;
+            path[i + 1] = existing != null ? existing : parent.addChild(key.charAt(i));
+            if (parent.top == null && parent.keepsTop()) {
+                parent.top = topBelow(only); // had a single child before this name
+            }
+        }
+        Node last = path[key.length()];
+        if (last.top == null) {
+            // A new leaf, or a node in between that becomes the end of this name
+            last.top = last.children.length == 0 ? NO_SUGGESTIONS : topBelow(last.children[0]);
+        }
+        last.end = true;
+
+        for (Node node : path) {
+            if (node.top != null) {
+                offer(node, suggestion);
+            }
+        }
+    }
+
+    // The top-K of the names below a node, from the first node down that keeps one
+    private static Suggestion[] topBelow(Node node) {
+        while (node.top == null) {
+            node = node.children[0];
+        }
+        return node.top;
+    }
+
+    // Put the suggestion in the node's top-K, if it's popular enough
+    // The top array is replaced rather than modified, so a reader never sees a half-updated list
+    private void offer(Node node, Suggestion suggestion) {
+        Suggestion[] top = node.top;
+
+        // Drop the old entry for this name (it has a lower weight)
+        int existing = -1;
+        for (int i = 0; i < top.length; i++) {
+            if (top[i].name.equals(suggestion.name)) {
+                existing = i;
+                break;
+            }
+        }
+        if (existing < 0 && top.length == topK && top[top.length - 1].weight >= suggestion.weight) {
+            return; // not popular enough
+        }
+
+        List<Suggestion> updated = new ArrayList<>(top.length + 1);
+        for (int i = 0; i < top.length; i++) {
+            if (i != existing) {
+                updated.add(top[i]);
+            }
+        }
+        int insertAt = 0;
+        while (insertAt < updated.size() && updated.get(insertAt).weight >= suggestion.weight) {
+            insertAt++;
+        }
+        updated.add(insertAt, suggestion);
+        if (updated.size() > topK) {
+            updated.remove(updated.size() - 1);
+        }
+        node.top = updated.toArray(NO_SUGGESTIONS);
+    }
+}
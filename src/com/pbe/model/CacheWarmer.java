@@ -0,0 +1,215 @@
+package com.pbe.model;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+// *********************
+// Cache warm-up
+// *********************
+// After a restart every lookup starts cold: nothing is cached, and SQLite has to read every page from disk.
+// The warmer fixes that in two steps:
+// 1. While running, it counts which lookups (albums for an artist, artist for a song, song info) are done,
+//    and saves the most frequent ones to a file (on save(), e.g. when closing the CachedDatasource).
+// 2. When the CachedDatasource is opened, it replays those lookups in the background, on a few threads
+//    with their own connections. That fills the result cache, and gets the database pages the lookups need
+//    into the operating system's file cache, before the first real traffic arrives.
+// Lookups that are already in the (persistent) cache are skipped.
+//
+// The counts are kept for at most twice the number of keys that are saved. When that's reached, only the
+// most frequent half is kept and the rest is dropped, so a stream of one-off lookups can't make the counts grow
+// without bound. That's an approximation: a key that's dropped and comes back later starts counting from 0.
+//
+// File format: one lookup per line, "<count> <lookup key>", most frequent first. The key is URL-encoded.
+public class CacheWarmer {
+
+    public static final int DEFAULT_MAX_KEYS = 10_000;
+    public static final int DEFAULT_THREADS = 4;
+
+    private final String file;
+    private final int maxKeys;
+    private final int threads;
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+    private final Object pruneLock = new Object();
+
+    // The running warm-up (see warmUp()), and whether it should stop
+    private CompletableFuture<Void> warming = CompletableFuture.completedFuture(null);
+    private volatile boolean stopping;
+
+    public CacheWarmer(String file) {
+        this(file, DEFAULT_MAX_KEYS, DEFAULT_THREADS);
+    }
+
+    public CacheWarmer(String file, int maxKeys, int threads) {
+        this.file = file;
+        this.maxKeys = maxKeys;
+        this.threads = threads;
+    }
+
+    // ******
+    // Count a lookup (called by CachedDatasource for every lookup)
+    // ******
+    public void record(String key) {
+        LongAdder count = counts.get(key);
+        if (count == null) {
+            if (counts.size() >= 2 * maxKeys) {
+                prune();
+            }
+            count = counts.computeIfAbsent(key, k -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    // ******
+    // Drop the least frequent half of the counts (see the class comment)
+    // Sorting is O(n log n), but it's done at most once every maxKeys new keys
+    // ******
+    private void prune() {
+        synchronized (pruneLock) {
+            if (counts.size() < 2 * maxKeys) {
+                return; // another thread just did it
+            }
+            List<Map.Entry<String, Long>> sorted = new ArrayList<>(counts.size());
+            for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+                sorted.add(Map.entry(entry.getKey(), entry.getValue().sum()));
+            }
+            sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+            for (int i = maxKeys; i < sorted.size(); i++) {
+                counts.remove(sorted.get(i).getKey());
+            }
+        }
+    }
+
+    // ******
+    // Save the most frequent lookups, together with the ones saved earlier
+    // ******
+    public void save() {
+        // Keep the counts of the previous run, so lookups that were popular before this run aren't forgotten
+        Map<String, Long> merged = new ConcurrentHashMap<>();
+        for (String[] saved : readFile()) {
+            merged.merge(saved[1], Long.parseLong(saved[0]), Long::sum);
+        }
+        for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+            merged.merge(entry.getKey(), entry.getValue().sum(), Long::sum);
+        }
+
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(merged.entrySet());
+        sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8))) {
+            for (int i = 0; i < Math.min(maxKeys, sorted.size()); i++) {
+                // Halve the old counts, so the list follows what's popular now
+                long count = Math.max(1, sorted.get(i).getValue() / 2);
+                writer.write(count + " " + URLEncoder.encode(sorted.get(i).getKey(), StandardCharsets.UTF_8));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't save warm-up keys: " + e.getMessage());
+            e.printStackTrace();
+        }
+        counts.clear();
+    }
+
+    // ******
+    // Replay the saved lookups in the background
+    // The returned future completes when the warm-up is done (or stopped, see close())
+    // ******
+    public synchronized CompletableFuture<Void> warmUp(CachedDatasource target) {
+        stopping = false;
+        List<String> keys = new ArrayList<>();
+        for (String[] saved : readFile()) {
+            keys.add(saved[1]);
+        }
+        if (keys.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "cache-warmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Every thread gets every n-th key, so the most popular keys are spread over all threads and done first
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            futures.add(CompletableFuture.runAsync(() -> {
+                if (stopping) {
+                    return;
+                }
+                Datasource source = new Datasource(target.getDatasource().getConnectionString());
+                if (!source.open()) {
+                    System.out.println("Cache warmer can't open datasource");
+                    return;
+                }
+                try {
+                    for (int i = first; i < keys.size() && !stopping; i += threads) {
+                        try {
+                            target.warm(source, keys.get(i));
+                        } catch (DatasourceException e) {
+                            // Skip it, the lookup will simply be done (and cached) when it's first used
+                            System.out.println("Cache warm-up lookup failed: " + e.getMessage());
+                        }
+                    }
+                } finally {
+                    source.close();
+                }
+            }, executor));
+        }
+
+        warming = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((result, e) -> {
+            executor.shutdown();
+            System.out.format("Cache warm-up of %d lookups %s in %d ms\n",
+                    keys.size(), stopping ? "stopped" : "done", (System.nanoTime() - start) / 1_000_000);
+        });
+        return warming;
+    }
+
+    // ******
+    // Stop a running warm-up, and wait until its threads have closed their connections
+    // Lookups that are running finish first; the ones that haven't started yet are skipped
+    // ******
+    public synchronized void close() {
+        stopping = true;
+        try {
+            warming.join();
+        } catch (CompletionException e) {
+            System.out.println("Cache warm-up failed: " + e.getMessage());
+        }
+    }
+
+    // Returns {count, key} pairs, or an empty list if there's no file yet
+    private List<String[]> readFile() {
+        List<String[]> saved = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    saved.add(new String[]{line.substring(0, space),
+                            URLDecoder.decode(line.substring(space + 1), StandardCharsets.UTF_8)});
+                }
+            }
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+        return saved;
+    }
+}
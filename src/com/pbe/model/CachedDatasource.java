@@ -0,0 +1,207 @@
+package com.pbe.model;
+
+import java.io.IOException;
+import java.util.List;
+
+// *********************
+// Cached Datasource
+// *********************
+// Serves Datasource lookups from a TieredCache, storing the results in the compact RowCodec format.
+// The cache file is kept next to the database, so the results survive a restart.
+//
+// Writes done through this class (insertSong) empty the cache, because any cached result could be affected.
+// A lookup that was already running when the cache was emptied doesn't store its (possibly outdated) result:
+// it reads the cache generation before the query, and the cache drops the result if that has changed since.
+// Changes made by other programs while the cache file was closed are noticed when opening (the file is saved
+// with the database file version, see Datasource.getFileVersion()), and the file is discarded then.
+// Changes made by other programs while the cache is open are not noticed: call invalidate() after those.
+//
+// Optionally, a CacheWarmer records the lookups, and replays the most frequent ones when opening.
+public class CachedDatasource {
+
+    public static final String CACHE_FILE_SUFFIX = ".cache";
+
+    // Kinds of lookups, the first part of the cache keys ("kind|sortOrder|name")
+    public static final String KIND_ARTISTS = "artists";
+    public static final String KIND_ALBUMS = "albums";
+    public static final String KIND_ARTIST_FOR_SONG = "artistForSong";
+    public static final String KIND_SONG_INFO = "songInfo";
+
+    private final Datasource datasource;
+    private final String cacheFile;
+    private volatile TieredCache cache; // read by the warm-up threads
+    private CacheWarmer warmer;
+
+    public CachedDatasource(Datasource datasource, String cacheFile) {
+        this.datasource = datasource;
+        this.cacheFile = cacheFile;
+    }
+
+    // ******
+    // Open the datasource and the cache file
+    // ******
+    public boolean open() {
+        if (!datasource.open()) {
+            return false;
+        }
+        try {
+            cache = new TieredCache(cacheFile, datasource.getFileVersion());
+            if (warmer != null) {
+                warmer.warmUp(this); // runs in the background, lookups can start right away
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("Couldn't open cache file: " + e.getMessage());
+            e.printStackTrace();
+            datasource.close();
+            return false;
+        }
+    }
+
+    public void close() {
+        if (warmer != null) {
+            warmer.close(); // its threads write to the cache, and have connections of their own
+            warmer.save();
+        }
+        // Close the database first, so the file version saved with the cache includes everything written to it
+        datasource.close();
+        if (cache != null) {
+            try {
+                cache.close(datasource.getFileVersion());
+            } catch (IOException e) {
+                System.out.println("Couldn't close cache file: " + e.getMessage());
+                e.printStackTrace();
+            }
+            cache = null;
+        }
+    }
+
+    public Datasource getDatasource() {
+        return datasource;
+    }
+
+    public TieredCache getCache() {
+        return cache;
+    }
+
+    // Record lookups and warm the cache up when opening (must be set before open())
+    public void setCacheWarmer(CacheWarmer warmer) {
+        this.warmer = warmer;
+    }
+
+    public List<Artist> queryArtists(int sortOrder) {
+        String key = key(KIND_ARTISTS, sortOrder, "");
+        return cached(key, () -> datasource.queryArtists(sortOrder));
+    }
+
+    public List<String> queryAlbumsForArtist(String artistName, int sortOrder) {
+        String key = key(KIND_ALBUMS, sortOrder, artistName);
+        return cached(key, () -> datasource.queryAlbumsForArtist(artistName, sortOrder));
+    }
+
+    public List<SongArtist> queryArtistForSong(String songName, int sortOrder) {
+        String key = key(KIND_ARTIST_FOR_SONG, sortOrder, songName);
+        return cached(key, () -> datasource.queryArtistForSong(songName, sortOrder));
+    }
+
+    public List<SongArtist> querySongInfoView(String title) {
+        String key = key(KIND_SONG_INFO, Datasource.ORDER_BY_NONE, title);
+        return cached(key, () -> datasource.querySongInfoView(title));
+    }
+
+    public boolean insertSong(String title, String artist, String album, int track) {
+        boolean inserted = datasource.insertSong(title, artist, album, track);
+        if (inserted) {
+            invalidate();
+        }
+        return inserted;
+    }
+
+    // Drop all cached results, e.g. after the database was changed by another program
+    public void invalidate() {
+        cache.clear();
+    }
+
+    // ******
+    // Run the lookup of a cache key on another datasource, and cache the result
+    // Used by the CacheWarmer, to fill the cache from several connections at once
+    // Like the lookups, the result is dropped if the cache was cleared while the query ran (see cached())
+    // ******
+    void warm(Datasource source, String key) {
+        TieredCache current = cache;
+        if (current == null) {
+            return; // closed while warming up
+        }
+        long generation = current.getGeneration();
+        if (current.get(key) != null) {
+            return; // still cached from before the restart
+        }
+        String[] parts = key.split("\\|", 3);
+        if (parts.length != 3) {
+            return;
+        }
+        int sortOrder = Integer.parseInt(parts[1]);
+        String name = parts[2];
+        switch (parts[0]) {
+            case KIND_ARTISTS:
+                current.put(key, RowCodec.encode(source.queryArtists(sortOrder)), generation);
+                break;
+            case KIND_ALBUMS:
+                current.put(key, RowCodec.encode(source.queryAlbumsForArtist(name, sortOrder)), generation);
+                break;
+            case KIND_ARTIST_FOR_SONG:
+                current.put(key, RowCodec.encode(source.queryArtistForSong(name, sortOrder)), generation);
+                break;
+            case KIND_SONG_INFO:
+                current.put(key, RowCodec.encode(source.querySongInfoView(name)), generation);
+                break;
+            default:
+                System.out.println("Unknown warm-up key " + key);
+        }
+    }
+
+    private static String key(String kind, int sortOrder, String name) {
+        return kind + '|' + sortOrder + '|' + name;
+    }
+
+    private interface Query<T> {
+        List<T> run();
+    }
+
+    // ******
+    // Return the cached result of a key, or run the query and cache its result
+    // The generation is read before the query runs: if the cache is cleared while it runs (e.g. by insertSong),
+    // the result may be from before that change, and store() drops it
+    // ******
+    private <T> List<T> cached(String key, Query<T> query) {
+        long generation = cache.getGeneration();
+        List<T> cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        return store(key, generation, query.run());
+    }
+
+    private <T> List<T> lookup(String key) {
+        if (warmer != null) {
+            warmer.record(key);
+        }
+        byte[] encoded = cache.get(key);
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            return RowCodec.decode(encoded);
+        } catch (RowCodecException e) {
+            // E.g. a damaged cold file: run the query instead, which puts a good copy in the cache
+            System.out.println("Invalid cache entry for " + key + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Failed queries throw a DatasourceException before getting here, so they're never cached
+    private <T> List<T> store(String key, long generation, List<T> result) {
+        cache.put(key, RowCodec.encode(result), generation);
+        return result;
+    }
+}
@@ -0,0 +1,83 @@
+package com.pbe.model;
+
+import java.util.Collections;
+import java.util.List;
+
+// *********************
+// Coalescing Datasource lookups
+// *********************
+// Puts a SingleFlight in front of the Datasource lookups, so concurrent identical requests
+// (same method, same name, same sort order) share one database execution and its result.
+//
+// The Datasource has a single connection and reuses its prepared statements, so different lookups
+// still take turns on the connection. Coalescing means the identical ones don't queue up behind each other.
+//
+// The returned lists are shared between all callers of the same execution, so (like MemoizedDatasource)
+// they're returned as unmodifiable lists.
+public class CoalescingDatasource {
+
+    private final Datasource datasource;
+
+    private final SingleFlight<List<Artist>> artists = new SingleFlight<>();
+    private final SingleFlight<List<String>> albumsForArtist = new SingleFlight<>();
+    private final SingleFlight<List<SongArtist>> artistForSong = new SingleFlight<>();
+    private final SingleFlight<List<SongArtist>> songInfo = new SingleFlight<>();
+
+    public CoalescingDatasource(Datasource datasource) {
+        this.datasource = datasource;
+    }
+
+    public Datasource getDatasource() {
+        return datasource;
+    }
+
+    public List<Artist> queryArtists(int sortOrder) {
+        return artists.execute(Integer.toString(sortOrder), () -> {
+            synchronized (datasource) {
+                return Collections.unmodifiableList(datasource.queryArtists(sortOrder));
+            }
+        });
+    }
+
+    public List<String> queryAlbumsForArtist(String artistName, int sortOrder) {
+        return albumsForArtist.execute(sortOrder + ":" + artistName, () -> {
+            synchronized (datasource) {
+                return Collections.unmodifiableList(datasource.queryAlbumsForArtist(artistName, sortOrder));
+            }
+        });
+    }
+
+    public List<SongArtist> queryArtistForSong(String songName, int sortOrder) {
+        return artistForSong.execute(sortOrder + ":" + songName, () -> {
+            synchronized (datasource) {
+                return Collections.unmodifiableList(datasource.queryArtistForSong(songName, sortOrder));
+            }
+        });
+    }
+
+    public List<SongArtist> querySongInfoView(String title) {
+        return songInfo.execute(title, () -> {
+            synchronized (datasource) {
+                return Collections.unmodifiableList(datasource.querySongInfoView(title));
+            }
+        });
+    }
+
+    // ******
+    // Metrics: total calls and calls that shared another call's result, over all lookups
+    // ******
+    public long getCalls() {
+        return artists.getCalls() + albumsForArtist.getCalls() + artistForSong.getCalls() + songInfo.getCalls();
+    }
+
+    public long getCollapsed() {
+        return artists.getCollapsed() + albumsForArtist.getCollapsed() +
+                artistForSong.getCollapsed() + songInfo.getCollapsed();
+    }
+
+    public void printMetrics() {
+        System.out.format("Coalescing: %d calls, %d collapsed (artists %d, albums %d, artistForSong %d, songInfo %d)\n",
+                getCalls(), getCollapsed(), artists.getCollapsed(), albumsForArtist.getCollapsed(),
+                artistForSong.getCollapsed(), songInfo.getCollapsed());
+    }
+}
@@ -0,0 +1,65 @@
+package com.pbe.model;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// *********************
+// Lock contention metrics
+// *********************
+// Counts how often statements ran into a busy / locked database, and how long was spent waiting for it.
+// Used to tune the busy timeout and the retry policy: many retries with little waiting means the back-off
+// is too short, failures after retrying mean the writers need to be spread out (or the timeouts raised).
+// Can be shared by several datasources, to get the numbers for a whole pool of connections.
+public class ContentionMetrics {
+
+    private final LongAdder busyErrors = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    // A statement failed with a busy / locked error
+    void recordBusy() {
+        busyErrors.increment();
+    }
+
+    // Waited this long before trying a statement again
+    void recordRetry(long waitedNanos) {
+        retries.increment();
+        waitNanos.add(waitedNanos);
+    }
+
+    // A statement succeeded after one or more retries
+    void recordRecovered() {
+        recovered.increment();
+    }
+
+    // A statement still failed after retrying as often as the policy allows
+    void recordFailure() {
+        failures.increment();
+    }
+
+    public long getBusyErrors() {
+        return busyErrors.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getRecovered() {
+        return recovered.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getWaitMillis() {
+        return waitNanos.sum() / 1_000_000;
+    }
+
+    public void printSummary() {
+        System.out.format("Contention: %d busy errors, %d retries (%d ms waiting), %d recovered, %d failed\n",
+                getBusyErrors(), getRetries(), getWaitMillis(), getRecovered(), getFailures());
+    }
+}
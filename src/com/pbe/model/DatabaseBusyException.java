@@ -0,0 +1,18 @@
+package com.pbe.model;
+
+import java.sql.SQLException;
+
+// *********************
+// Database busy
+// *********************
+// The query failed because another connection held a lock on the database for too long,
+// even after waiting for the busy timeout and retrying (see RetryPolicy).
+// Not an error in the query itself: the same query may well succeed a moment later.
+public class DatabaseBusyException extends DatasourceException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DatabaseBusyException(String message, SQLException cause) {
+        super(message, cause);
+    }
+}
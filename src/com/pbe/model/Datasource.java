@@ -1,16 +1,31 @@
 package com.pbe.model;
 
-import javax.xml.transform.Result;
-import java.net.PortUnreachableException;
+import com.pbe.migration.CatalogMigrations;
+import com.pbe.migration.SchemaMigrator;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Datasource {
 
     // Set constants for the database
     public static final String DB_NAME = "music.db";
-    public static final String CONNECTION_STRING = "jdbc:sqlite:C:\\Coding\\Java Projects\\Java Masterclass\\Databases\\" + DB_NAME;
+    public static final String DB_PATH = "C:\\Coding\\Java Projects\\Java Masterclass\\Databases\\";
+    public static final String CONNECTION_STRING = "jdbc:sqlite:" + DB_PATH + DB_NAME;
 
     // Define album table and it's columns
     public static final String TABLE_ALBUMS = "albums";
@@ -33,6 +48,10 @@ public class Datasource {
     public static final String COLUMN_ARTIST_ID = "_id";
     public static final String COLUMN_ARTIST_NAME = "name";
 
+    // Added by a schema migration (see CatalogMigrations), so not every database has it
+    // The artist name as NameIndex.normalize() returns it
+    public static final String COLUMN_ARTIST_NAME_NORMALIZED = "name_normalized";
+
     // Add artist table column index constants
     public static final int INDEX_ARTIST_ID = 1;
     public static final int INDEX_ARTIST_NAME = 2;
@@ -61,11 +80,26 @@ public class Datasource {
             "SELECT " + TABLE_ALBUMS + '.' + COLUMN_ARTIST_NAME + " FROM " + TABLE_ALBUMS +
                     " INNER JOIN " + TABLE_ARTISTS + " ON " + TABLE_ALBUMS + "." + COLUMN_ALBUM_ARTIST +
                     " = " + TABLE_ARTISTS + "." + COLUMN_ARTIST_ID +
-                    " WHERE " + TABLE_ARTISTS + "." + COLUMN_ARTIST_NAME + " = \"";
+                    " WHERE " + TABLE_ARTISTS + "." + COLUMN_ARTIST_NAME + " = ?";
 
     public static final String QUERY_ALBUMS_BY_ARTIST_SORT =
             " ORDER BY " + TABLE_ALBUMS + "." + COLUMN_ARTIST_NAME + " COLLATE NOCASE ";
 
+    // Query albums by artist _id(s), used when the artist name was resolved via the name index
+    // The exact name is matched as well, so artists the index doesn't know (yet) are still found
+    // SELECT albums.name FROM albums WHERE albums.artist IN (...)
+    //   OR albums.artist IN (SELECT _id FROM artists WHERE name = ?)
+    public static final String QUERY_ALBUMS_BY_ARTIST_ID_START =
+            "SELECT " + TABLE_ALBUMS + '.' + COLUMN_ALBUM_NAME + " FROM " + TABLE_ALBUMS +
+                    " WHERE " + TABLE_ALBUMS + '.' + COLUMN_ALBUM_ARTIST + " IN (";
+
+    public static final String QUERY_ALBUMS_BY_ARTIST_ID_OR_NAME =
+            ") OR " + TABLE_ALBUMS + '.' + COLUMN_ALBUM_ARTIST + " IN (SELECT " + COLUMN_ARTIST_ID +
+                    " FROM " + TABLE_ARTISTS + " WHERE " + COLUMN_ARTIST_NAME + " = ?)";
+
+    public static final String QUERY_ALBUMS_BY_ARTIST_ID_SORT =
+            " ORDER BY " + TABLE_ALBUMS + "." + COLUMN_ALBUM_NAME + " COLLATE NOCASE ";
+
     // Query artist from a song
     public static final String QUERY_ARTIST_FOR_SONG_START =
             "SELECT " + TABLE_ARTISTS + '.' + COLUMN_ARTIST_NAME + ", " + TABLE_ALBUMS + '.' + COLUMN_ALBUM_NAME + ", " +
@@ -74,12 +108,28 @@ public class Datasource {
                     " = " + TABLE_ALBUMS + '.' + COLUMN_ALBUM_ID +
                     " INNER JOIN " + TABLE_ARTISTS + " ON " + TABLE_ALBUMS + '.' + COLUMN_ALBUM_ARTIST +
                     " = " + TABLE_ARTISTS + '.' + COLUMN_ARTIST_ID +
-                    " WHERE " + TABLE_SONGS + '.' + COLUMN_SONG_TITLE + " = \"";
+                    " WHERE " + TABLE_SONGS + '.' + COLUMN_SONG_TITLE + " = ?";
 
     public static final String QUERY_ARTIST_FOR_SONG_SORT =
             " ORDER BY " + TABLE_ARTISTS + "." + COLUMN_ARTIST_NAME + ", "
                     + TABLE_ALBUMS + '.' + COLUMN_ALBUM_NAME + " COLLATE NOCASE ";
 
+    // Query artist from song _id(s), used when the song title was resolved via the name index
+    // Like the albums query, the exact title is matched as well
+    public static final String QUERY_ARTIST_FOR_SONG_ID_START =
+            "SELECT " + TABLE_ARTISTS + '.' + COLUMN_ARTIST_NAME + ", " + TABLE_ALBUMS + '.' + COLUMN_ALBUM_NAME + ", " +
+                    TABLE_SONGS + '.' + COLUMN_SONG_TRACK + " FROM " + TABLE_SONGS +
+                    " INNER JOIN " + TABLE_ALBUMS + " ON " + TABLE_SONGS + '.' + COLUMN_SONG_ALBUM +
+                    " = " + TABLE_ALBUMS + '.' + COLUMN_ALBUM_ID +
+                    " INNER JOIN " + TABLE_ARTISTS + " ON " + TABLE_ALBUMS + '.' + COLUMN_ALBUM_ARTIST +
+                    " = " + TABLE_ARTISTS + '.' + COLUMN_ARTIST_ID +
+                    " WHERE " + TABLE_SONGS + '.' + COLUMN_SONG_ID + " IN (";
+
+    public static final String QUERY_ARTIST_FOR_SONG_ID_OR_TITLE =
+            ") OR " + TABLE_SONGS + '.' + COLUMN_SONG_TITLE + " = ?";
+
+    public static final String QUERY_ARTIST_FOR_SONG_ID_SORT = QUERY_ARTIST_FOR_SONG_SORT;
+
     // Setting a constant for a view
     public static final String TABLE_ARTIST_SONG_VIEW = "artist_list";
 
@@ -110,26 +160,271 @@ public class Datasource {
             COLUMN_SONG_ALBUM + ", " + COLUMN_SONG_TRACK + " FROM " + TABLE_ARTIST_SONG_VIEW +
             " WHERE " + COLUMN_SONG_TITLE + " = ?";
 
+    // Popularity of artists (number of songs) and song titles (number of recordings), used for autocomplete
+    // SELECT artists.name, COUNT(songs._id) FROM artists INNER JOIN albums ON albums.artist = artists._id
+    // INNER JOIN songs ON songs.album = albums._id GROUP BY artists._id
+    public static final String QUERY_ARTIST_POPULARITY =
+            "SELECT " + TABLE_ARTISTS + '.' + COLUMN_ARTIST_NAME + ", COUNT(" + TABLE_SONGS + '.' + COLUMN_SONG_ID + ")" +
+                    " FROM " + TABLE_ARTISTS +
+                    " INNER JOIN " + TABLE_ALBUMS + " ON " + TABLE_ALBUMS + '.' + COLUMN_ALBUM_ARTIST +
+                    " = " + TABLE_ARTISTS + '.' + COLUMN_ARTIST_ID +
+                    " INNER JOIN " + TABLE_SONGS + " ON " + TABLE_SONGS + '.' + COLUMN_SONG_ALBUM +
+                    " = " + TABLE_ALBUMS + '.' + COLUMN_ALBUM_ID +
+                    " GROUP BY " + TABLE_ARTISTS + '.' + COLUMN_ARTIST_ID;
+
+    // SELECT title, COUNT(*) FROM songs GROUP BY title
+    public static final String QUERY_SONG_POPULARITY = "SELECT " + COLUMN_SONG_TITLE + ", COUNT(*) FROM " +
+            TABLE_SONGS + " GROUP BY " + COLUMN_SONG_TITLE;
+
+    // Create table statements
+    // Used to set up the schema on an empty database file (e.g. a new shard), hence "IF NOT EXISTS"
+    public static final String CREATE_TABLE_ARTISTS = "CREATE TABLE IF NOT EXISTS " + TABLE_ARTISTS +
+            " (" + COLUMN_ARTIST_ID + " INTEGER PRIMARY KEY, " + COLUMN_ARTIST_NAME + " TEXT NOT NULL)";
+
+    public static final String CREATE_TABLE_ALBUMS = "CREATE TABLE IF NOT EXISTS " + TABLE_ALBUMS +
+            " (" + COLUMN_ALBUM_ID + " INTEGER PRIMARY KEY, " + COLUMN_ALBUM_NAME + " TEXT NOT NULL, " +
+            COLUMN_ALBUM_ARTIST + " INTEGER)";
+
+    public static final String CREATE_TABLE_SONGS = "CREATE TABLE IF NOT EXISTS " + TABLE_SONGS +
+            " (" + COLUMN_SONG_ID + " INTEGER PRIMARY KEY, " + COLUMN_SONG_TRACK + " INTEGER, " +
+            COLUMN_SONG_TITLE + " TEXT NOT NULL, " + COLUMN_SONG_ALBUM + " INTEGER)";
+
+    // Insert statements (placeholders are filled in via prepared statements)
+    // INSERT INTO artists(name) VALUES(?)
+    public static final String INSERT_ARTIST = "INSERT INTO " + TABLE_ARTISTS +
+            '(' + COLUMN_ARTIST_NAME + ") VALUES(?)";
+
+    // INSERT INTO artists(name, name_normalized) VALUES(?, ?), once the database has the name_normalized column
+    public static final String INSERT_ARTIST_NORMALIZED = "INSERT INTO " + TABLE_ARTISTS +
+            '(' + COLUMN_ARTIST_NAME + ", " + COLUMN_ARTIST_NAME_NORMALIZED + ") VALUES(?, ?)";
+
+    // INSERT INTO albums(name, artist) VALUES(?, ?)
+    public static final String INSERT_ALBUM = "INSERT INTO " + TABLE_ALBUMS +
+            '(' + COLUMN_ALBUM_NAME + ", " + COLUMN_ALBUM_ARTIST + ") VALUES(?, ?)";
+
+    // INSERT INTO songs(track, title, album) VALUES(?, ?, ?)
+    public static final String INSERT_SONG = "INSERT INTO " + TABLE_SONGS +
+            '(' + COLUMN_SONG_TRACK + ", " + COLUMN_SONG_TITLE + ", " + COLUMN_SONG_ALBUM +
+            ") VALUES(?, ?, ?)";
+
+    // Lookups used by the inserts, to reuse an existing artist or album instead of creating a duplicate
+    // SELECT _id FROM artists WHERE name = ?
+    public static final String QUERY_ARTIST = "SELECT " + COLUMN_ARTIST_ID + " FROM " +
+            TABLE_ARTISTS + " WHERE " + COLUMN_ARTIST_NAME + " = ?";
+
+    // SELECT _id FROM albums WHERE name = ? AND artist = ?
+    public static final String QUERY_ALBUM = "SELECT " + COLUMN_ALBUM_ID + " FROM " +
+            TABLE_ALBUMS + " WHERE " + COLUMN_ALBUM_NAME + " = ? AND " + COLUMN_ALBUM_ARTIST + " = ?";
+
 
     // Set a Connection declaration
     // Connection is a statement object for sending SQL statements to the database
-    private Connection conn;
+    // The connection and the prepared statements are futures, so they can be set up in the background
+    // (see openAsync()): every method waits for the ones it needs, and only those.
+    // After open() they're all ready.
+    private CompletableFuture<Connection> connection;
+
+    // The connection once the schema is checked (see ensureSchema()). Everything that uses the tables waits for
+    // this one, so nothing runs against a database whose tables are still being created or migrated.
+    private CompletableFuture<Connection> schemaChecked;
+
+    // The database this datasource connects to (defaults to music.db)
+    private final String connectionString;
 
     // Adding a prepared statement variable
-    private PreparedStatement querySongInfoView;
+    private CompletableFuture<PreparedStatement> querySongInfoView;
+
+    // Prepared statements for inserting songs
+    private CompletableFuture<PreparedStatement> insertIntoArtists;
+    private CompletableFuture<PreparedStatement> insertIntoAlbums;
+    private CompletableFuture<PreparedStatement> insertIntoSongs;
+    private CompletableFuture<PreparedStatement> queryArtist;
+    private CompletableFuture<PreparedStatement> queryAlbum;
+
+    // Whether insertIntoArtists fills in artists.name_normalized (the database has the column)
+    private volatile boolean normalizedArtistNames;
+    // The schema_version insertIntoArtists was prepared at: while it leaves out name_normalized, a change means a
+    // migration may have added the column since (see insertArtistStatement())
+    private volatile long artistsSchemaVersion = -1;
+
+    // Autocompletes over the artist names and song titles, kept up to date by insertSong()
+    // Set by Autocomplete.forArtists() and forSongs(), null if there are none
+    private volatile Autocomplete artistAutocomplete;
+    private volatile Autocomplete songAutocomplete;
+
+    // Normalized artist name / song title to _id lookup, built when opening the datasource
+    // Stays null if it couldn't be built (or isn't built yet), in which case the queries match on the exact name
+    private volatile NameIndex nameIndex;
+
+    // Name indexes per database file, shared by all open datasources of that file (e.g. all connections of a pool),
+    // so the artists and songs tables are only scanned, and the index only kept in memory, once
+    // The index of a file is dropped when the last of its datasources closes (see releaseNameIndex())
+    private static final Map<String, SharedNameIndex> SHARED_NAME_INDEXES = new HashMap<>();
+
+    // The shared index this datasource uses, and the background build of it (see openAsync())
+    private SharedNameIndex sharedNameIndex;
+    private CompletableFuture<Void> nameIndexBuilt;
+
+    private static final class SharedNameIndex {
+        private final CompletableFuture<NameIndex> index = new CompletableFuture<>();
+        private int users; // guarded by SHARED_NAME_INDEXES
+    }
+
+    // Above this many ids, an "IN (...)" list is bound as a parameter instead of being written into the SQL
+    public static final int MAX_INLINE_IDS = 1000;
+
+    // Threads used by openAsync()
+    public static final int STARTUP_THREADS = 4;
+
+    // Where the result of the last schema check is kept (see ensureSchema()), null to always check
+    private String schemaCacheFile;
+
+    // Backfills started by the schema check (see ensureSchema()), completed with true if there were none
+    private volatile CompletableFuture<Boolean> backgroundMigration = CompletableFuture.completedFuture(true);
+
+    // How long the steps of opening took
+    private volatile StartupTimer startupTimer;
+
+    // Optional leak detector for the connection, statements and result sets of this datasource
+    private ResourceTracker resourceTracker;
+
+    // Number of writes committed through this connection
+    // PRAGMA data_version only changes for commits made by *other* connections, so this covers our own
+    private final AtomicLong writeGeneration = new AtomicLong();
+
+    // How long SQLite itself waits for a lock held by another connection, before failing with SQLITE_BUSY
+    public static final int DEFAULT_BUSY_TIMEOUT_MILLIS = 5000;
+    private int busyTimeoutMillis = DEFAULT_BUSY_TIMEOUT_MILLIS;
+
+    // What to do when the busy timeout wasn't enough (see RetryPolicy), and the numbers on how often that happens
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private ContentionMetrics contentionMetrics = new ContentionMetrics();
+
+    // A piece of JDBC work that can be run (again) by withRetry()
+    private interface SqlWork<T> {
+        T run() throws SQLException;
+    }
+
+    public Datasource() {
+        this(CONNECTION_STRING);
+    }
+
+    // Connect to another database file than the default one, e.g. a single shard of the catalog
+    public Datasource(String connectionString) {
+        this.connectionString = connectionString;
+        // Keep the schema check next to the database file (not for in-memory databases)
+        String prefix = "jdbc:sqlite:";
+        if (connectionString.startsWith(prefix) && connectionString.length() > prefix.length()
+                && !connectionString.contains(":memory:")) {
+            this.schemaCacheFile = connectionString.substring(prefix.length()) + ".schema";
+        }
+    }
+
+    public String getConnectionString() {
+        return connectionString;
+    }
+
+    // Track all JDBC resources opened by this datasource, to detect leaks (must be set before open())
+    public void setResourceTracker(ResourceTracker resourceTracker) {
+        this.resourceTracker = resourceTracker;
+    }
+
+    public ResourceTracker getResourceTracker() {
+        return resourceTracker;
+    }
+
+    // Busy timeout of the connection in milliseconds, 0 to fail immediately (must be set before open())
+    public void setBusyTimeout(int busyTimeoutMillis) {
+        this.busyTimeoutMillis = busyTimeoutMillis;
+    }
+
+    public int getBusyTimeout() {
+        return busyTimeoutMillis;
+    }
+
+    // Retry policy for busy / locked errors, RetryPolicy.NONE to fail on the first one
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    // Share the contention metrics with other datasources, e.g. all connections of a pool
+    public void setContentionMetrics(ContentionMetrics contentionMetrics) {
+        this.contentionMetrics = contentionMetrics;
+    }
+
+    public ContentionMetrics getContentionMetrics() {
+        return contentionMetrics;
+    }
+
+    void setArtistAutocomplete(Autocomplete artistAutocomplete) {
+        this.artistAutocomplete = artistAutocomplete;
+    }
+
+    void setSongAutocomplete(Autocomplete songAutocomplete) {
+        this.songAutocomplete = songAutocomplete;
+    }
+
+    // File to cache the schema check in, or null to check the schema every time ensureSchema() is called
+    public void setSchemaCacheFile(String schemaCacheFile) {
+        this.schemaCacheFile = schemaCacheFile;
+    }
+
+    // Timings of the last open() or openAsync()
+    public StartupTimer getStartupTimer() {
+        return startupTimer;
+    }
+
+    // The backfills the last schema check left running in the background, with whether they succeeded
+    public CompletableFuture<Boolean> getBackgroundMigration() {
+        return backgroundMigration;
+    }
 
     // ******
     // Open database connection
+    // Everything is set up on the calling thread, and ready when this returns
     // ******
     public boolean open() {
+        return open(false);
+    }
+
+    // ******
+    // Open database connection, first bringing the schema up to date (see ensureSchema()) if createSchema is set
+    // The statements are compiled when they're prepared, so on an empty database file (e.g. a new shard)
+    // the schema has to exist before that
+    // ******
+    public boolean open(boolean createSchema) {
+        StartupTimer timer = new StartupTimer();
+        startupTimer = timer;
+        long start = System.nanoTime();
         try {
-            // Establish a connection with the database via DriverManager's getConnection()
-            conn = DriverManager.getConnection(CONNECTION_STRING);
+            Connection conn = connect();
+            connection = CompletableFuture.completedFuture(conn);
+            schemaChecked = connection;
+
+            if (createSchema && !ensureSchema()) {
+                conn.close();
+                connection = null;
+                schemaChecked = null;
+                return false;
+            }
 
             // Creating an instance of prepared statement,
             // and pass it the prepared SQL query statement (containing a placeholder) that needs to be executed
-            querySongInfoView = conn.prepareStatement(QUERY_VIEW_SONG_INFO_PREP);
+            querySongInfoView = CompletableFuture.completedFuture(prepare(conn, QUERY_VIEW_SONG_INFO_PREP, false));
+            insertIntoArtists = CompletableFuture.completedFuture(prepare(conn, insertArtistSql(conn), true));
+            insertIntoAlbums = CompletableFuture.completedFuture(prepare(conn, INSERT_ALBUM, true));
+            insertIntoSongs = CompletableFuture.completedFuture(prepare(conn, INSERT_SONG, true));
+            queryArtist = CompletableFuture.completedFuture(prepare(conn, QUERY_ARTIST, false));
+            queryAlbum = CompletableFuture.completedFuture(prepare(conn, QUERY_ALBUM, false));
+
+            buildNameIndex();
+            nameIndexBuilt = CompletableFuture.completedFuture(null);
 
+            timer.record("open", start);
             return true;
         } catch (SQLException e) {
             System.out.println("Couldn't connect to database: " + e.getMessage());
@@ -138,16 +433,73 @@ public class Datasource {
         }
     }
 
+    // ******
+    // Open database connection in the background
+    // Returns right away. The setup runs on a few threads at the same time:
+    // - Connect
+    // - Check the schema (ensureSchema(), usually just a cached check). On an empty or outdated database this
+    //   creates the tables or applies the new schema changes, so everything else waits for it. Backfills don't
+    //   hold it up, they run in the background. Then in parallel:
+    //   - Prepare the statements
+    //   - Build the name index (until then, names are matched exactly)
+    // Queries can be called straight away: each one waits only for the schema check and its own statement.
+    // They share the connection with the setup steps; the SQLite driver runs one call at a time on it.
+    // The returned future completes when everything is ready, with false if anything failed.
+    // ******
+    public CompletableFuture<Boolean> openAsync() {
+        StartupTimer timer = new StartupTimer();
+        startupTimer = timer;
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(STARTUP_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "datasource-startup");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        connection = CompletableFuture.supplyAsync(() -> unchecked(this::connect), executor);
+        schemaChecked = connection.thenApplyAsync(conn -> {
+            if (!ensureSchema()) {
+                throw new CompletionException(new SQLException("Schema check failed"));
+            }
+            return conn;
+        }, executor);
+        querySongInfoView = prepareAsync(QUERY_VIEW_SONG_INFO_PREP, false, executor);
+        insertIntoArtists = schemaChecked.thenApplyAsync(
+                conn -> unchecked(() -> prepare(conn, insertArtistSql(conn), true)), executor);
+        insertIntoAlbums = prepareAsync(INSERT_ALBUM, true, executor);
+        insertIntoSongs = prepareAsync(INSERT_SONG, true, executor);
+        queryArtist = prepareAsync(QUERY_ARTIST, false, executor);
+        queryAlbum = prepareAsync(QUERY_ALBUM, false, executor);
+        nameIndexBuilt = schemaChecked.thenRunAsync(this::buildNameIndex, executor);
+
+        return CompletableFuture.allOf(querySongInfoView, insertIntoArtists, insertIntoAlbums, insertIntoSongs,
+                queryArtist, queryAlbum, nameIndexBuilt).handle((ready, e) -> {
+            executor.shutdown();
+            timer.record("open", start);
+            if (e != null) {
+                System.out.println("Couldn't open datasource: " + e.getMessage());
+                e.printStackTrace();
+                return false;
+            }
+            return true;
+        });
+    }
+
     // ******
     // Close database connection
+    // Waits for a background open (openAsync()) to get as far as it can first
     // ******
     public void close() {
+        closeStatement(querySongInfoView);
+        closeStatement(insertIntoArtists);
+        closeStatement(insertIntoAlbums);
+        closeStatement(insertIntoSongs);
+        closeStatement(queryArtist);
+        closeStatement(queryAlbum);
+        releaseNameIndex();
         try {
-            if(querySongInfoView != null) {
-                querySongInfoView.close();
-            }
-            if(conn != null) { // close connection as last
-                conn.close();
+            if (connection != null && !connection.isCompletedExceptionally()) { // close connection as last
+                rawConnection().close(); // also when the schema check failed
             }
         } catch (SQLException e) {
             System.out.println("Couldn't close connection " + e.getMessage());
@@ -155,6 +507,242 @@ public class Datasource {
         }
     }
 
+    private static void closeStatement(CompletableFuture<PreparedStatement> statement) {
+        if (statement == null) {
+            return;
+        }
+        try {
+            await(statement).close();
+        } catch (SQLException e) {
+            // Never prepared (e.g. the connection failed), so nothing to close
+        }
+    }
+
+    // ******
+    // Make sure the schema is up to date: the tables, the view, and everything the migrations add
+    // The schema is defined by the catalog migrations (see CatalogMigrations). This applies the schema changes
+    // the database hasn't had yet (see SchemaMigrator.migrateSchema()), which on an empty database creates
+    // everything. Backfills (filling in a new column for the existing rows) can take long on a big catalog,
+    // so they're left to a background migration (see getBackgroundMigration()) and the queries don't wait.
+    // Checking the migrations on every start takes the write lock. Instead, SQLite's schema_version (which
+    // changes on every schema change) and the latest migration version are compared with the ones saved after
+    // the last check that found the database completely migrated: if nothing changed since, there's nothing to do.
+    // ******
+    public boolean ensureSchema() {
+        long start = System.nanoTime();
+        SchemaMigrator migrator = new SchemaMigrator(connectionString, CatalogMigrations.all());
+        long version = readSchemaVersion();
+        String cached = readSchemaCache();
+        if (version >= 0 && cached != null && cached.equals(version + " " + migrator.getLatestVersion())) {
+            startupTimer("schema check (cached)", start);
+            return true;
+        }
+
+        boolean complete;
+        try {
+            if (connectionString.contains(":memory:")) {
+                // Another connection would get a different database, so everything runs on this one.
+                // There are no rows to backfill in a new in-memory database anyway.
+                complete = migrator.migrate(rawConnection());
+                if (!complete) {
+                    return false;
+                }
+            } else {
+                complete = migrator.migrateSchema(rawConnection());
+            }
+        } catch (SQLException e) {
+            System.out.println("Schema check failed: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+
+        if (complete) {
+            version = readSchemaVersion();
+            if (version >= 0) {
+                writeSchemaCache(version + " " + migrator.getLatestVersion());
+            }
+            startupTimer("schema check (migrated)", start);
+        } else {
+            // On its own connection, pausing between chunks so the queries of this datasource get their turn.
+            // The schema check isn't cached, so the next start checks (and resumes the backfill) again.
+            backgroundMigration = migrator.migrateAsync();
+            startupTimer("schema check (backfilling in background)", start);
+        }
+        return true;
+    }
+
+    private long readSchemaVersion() {
+        try {
+            return schemaVersion(rawConnection());
+        } catch (SQLException e) {
+            System.out.println("Couldn't read schema version: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private static long schemaVersion(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet results = statement.executeQuery("PRAGMA schema_version")) {
+            return results.next() ? results.getLong(1) : -1;
+        }
+    }
+
+    private String readSchemaCache() {
+        if (schemaCacheFile == null) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(Paths.get(schemaCacheFile)), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            return null; // not checked before
+        }
+    }
+
+    private void writeSchemaCache(String check) {
+        if (schemaCacheFile == null) {
+            return;
+        }
+        try {
+            Files.write(Paths.get(schemaCacheFile), check.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.out.println("Couldn't save schema check: " + e.getMessage());
+        }
+    }
+
+    private void startupTimer(String phase, long start) {
+        StartupTimer timer = startupTimer;
+        if (timer != null) {
+            timer.record(phase, start);
+        }
+    }
+
+    // Establish a connection with the database via DriverManager's getConnection()
+    private Connection connect() throws SQLException {
+        long start = System.nanoTime();
+        Connection conn = DriverManager.getConnection(connectionString);
+        if (resourceTracker != null) {
+            conn = resourceTracker.track(conn);
+        }
+
+        // Let SQLite wait for locks held by other connections, instead of failing straight away
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("PRAGMA busy_timeout = " + busyTimeoutMillis);
+        }
+        startupTimer("connect", start);
+        return conn;
+    }
+
+    // Prepare one of the statements that stay open until close()
+    private PreparedStatement prepare(Connection conn, String sql, boolean generatedKeys) throws SQLException {
+        long start = System.nanoTime();
+        PreparedStatement statement = generatedKeys
+                ? conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                : conn.prepareStatement(sql);
+        if (resourceTracker != null) {
+            resourceTracker.markLongLived(statement); // not a leak, however long it's open
+        }
+        startupTimer("prepare " + sql.substring(0, Math.min(40, sql.length())), start);
+        return statement;
+    }
+
+    // The artist insert to use: with the normalized name if the database has that column
+    private String insertArtistSql(Connection conn) throws SQLException {
+        artistsSchemaVersion = schemaVersion(conn);
+        normalizedArtistNames = hasColumn(conn, TABLE_ARTISTS, COLUMN_ARTIST_NAME_NORMALIZED);
+        return normalizedArtistNames ? INSERT_ARTIST_NORMALIZED : INSERT_ARTIST;
+    }
+
+    // ******
+    // The artist insert, switched to the one with the normalized name once the database has that column
+    // A datasource can stay open while a migration (on another connection, or in the background) adds
+    // artists.name_normalized. Its artist insert would keep leaving the column NULL, also after the backfill is
+    // done, and those artists would never be found by their normalized name. So until the insert fills it in,
+    // it's checked whether the schema changed since it was prepared, and prepared again if it did.
+    // Once the column is there this costs nothing; before that, one PRAGMA per inserted artist.
+    // ******
+    private PreparedStatement insertArtistStatement() throws SQLException {
+        PreparedStatement statement = await(insertIntoArtists);
+        if (normalizedArtistNames) {
+            return statement;
+        }
+        Connection conn = rawConnection();
+        if (schemaVersion(conn) == artistsSchemaVersion) {
+            return statement;
+        }
+        String sql = insertArtistSql(conn);
+        if (!normalizedArtistNames) {
+            return statement; // some other schema change
+        }
+        PreparedStatement reprepared = prepare(conn, sql, true);
+        insertIntoArtists = CompletableFuture.completedFuture(reprepared);
+        statement.close();
+        return reprepared;
+    }
+
+    // ******
+    // Check whether a table has a column, e.g. one that's added by a migration
+    // ******
+    public static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet results = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (results.next()) {
+                if (results.getString("name").equalsIgnoreCase(column)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private CompletableFuture<PreparedStatement> prepareAsync(String sql, boolean generatedKeys,
+                                                              ExecutorService executor) {
+        return schemaChecked.thenApplyAsync(conn -> unchecked(() -> prepare(conn, sql, generatedKeys)), executor);
+    }
+
+    // The connection, waiting for it (and for the schema check) if it's still being opened
+    private Connection connection() throws SQLException {
+        return await(schemaChecked);
+    }
+
+    // The connection without waiting for the schema check, for the schema check itself (and for closing)
+    private Connection rawConnection() throws SQLException {
+        return await(connection);
+    }
+
+    // ******
+    // Wait for the connection or a statement to be ready
+    // A failure while opening is thrown as the original SQLException
+    // ******
+    private static <T> T await(CompletableFuture<T> future) throws SQLException {
+        if (future == null) {
+            throw new SQLException("Datasource is not open");
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Opening the datasource failed", e.getCause());
+        }
+    }
+
+    // Run JDBC work inside a CompletableFuture stage, which can't throw checked exceptions
+    private static <T> T unchecked(SqlWork<T> work) {
+        try {
+            return work.run();
+        } catch (SQLException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    // The list queries below never return null:
+    // - Nothing found: an empty list. That's the shared Collections.emptyList(), so nothing is allocated
+    // - The query failed: a DatasourceException (a DatabaseBusyException if the database stayed locked)
+    // So callers can use the result right away, without checking for null first.
+    // The returned lists are unmodifiable, empty or not, so a caller that tries to change one fails every time,
+    // not only when nothing was found. Copy it into a new ArrayList to change it.
+
     // ******
     // Query artists table
     // ******
@@ -177,28 +765,34 @@ public class Datasource {
 
         // Create a 'statement' for sending SQL statements to the database
         // Execute query, returning all artist records with all column values
-        try (Statement statement = conn.createStatement();
-             ResultSet results = statement.executeQuery(sb.toString());
-        ) {
-            // Create list of artists objects and loop through
-            // For each artist, create an artist object
-            // Using getter methods to get the values from the record and send them to the artist instance
-            // Finally, add artist instance to the list
-            List<Artist> artists = new ArrayList<>();
-            while (results.next()) {
-                Artist artist = new Artist();
-                artist.setId(results.getInt(INDEX_ARTIST_ID)); // COLUMN_ARTIST_ID
-                artist.setName(results.getString(INDEX_ARTIST_NAME)); // COLUMN_ARTIST_NAME
-                artists.add(artist);
-            }
+        try {
+            return withRetry(() -> {
+                try (Statement statement = connection().createStatement();
+                     ResultSet results = statement.executeQuery(sb.toString());
+                ) {
+                    // No artists: return the shared empty list, instead of allocating a new one
+                    if (!results.next()) {
+                        return Collections.emptyList();
+                    }
 
-            // Return list to caller
-            return artists;
+                    // Create list of artists objects and loop through
+                    // For each artist, create an artist object
+                    // Using getter methods to get the values from the record and send them to the artist instance
+                    // Finally, add artist instance to the list
+                    List<Artist> artists = new ArrayList<>();
+                    do {
+                        Artist artist = new Artist();
+                        artist.setId(results.getInt(INDEX_ARTIST_ID)); // COLUMN_ARTIST_ID
+                        artist.setName(results.getString(INDEX_ARTIST_NAME)); // COLUMN_ARTIST_NAME
+                        artists.add(artist);
+                    } while (results.next());
 
+                    // Return list to caller
+                    return Collections.unmodifiableList(artists);
+                }
+            });
         } catch (SQLException e) {
-            System.out.println("Query failed " + e.getMessage());
-            e.printStackTrace();
-            return null;
+            throw DatasourceException.of("Query artists failed: " + e.getMessage(), e);
         }
 
     }
@@ -209,13 +803,28 @@ public class Datasource {
     // ******
     public List<String> queryAlbumsForArtist(String artistName, int sortOrder) {
 
-        // Build query string
-        StringBuilder sb = new StringBuilder(QUERY_ALBUMS_BY_ARTIST_START);
-        sb.append(artistName);
-        sb.append("\"");
+        StringBuilder sb;
+        String sortPart;
+        String boundIds;
+
+        // Resolve the artist via the name index first, so case and accent variants of the name still match
+        // The exact name is always matched too (bound as a parameter), so artists the index doesn't know
+        // (e.g. added by another connection) are still found
+        int[] artistIds = nameIndex != null ? nameIndex.artistIds(artistName) : new int[0];
+        if (artistIds.length > 0) {
+            sb = new StringBuilder(QUERY_ALBUMS_BY_ARTIST_ID_START);
+            boundIds = appendIds(sb, artistIds);
+            sb.append(QUERY_ALBUMS_BY_ARTIST_ID_OR_NAME);
+            sortPart = QUERY_ALBUMS_BY_ARTIST_ID_SORT;
+        } else {
+            // Build query string
+            sb = new StringBuilder(QUERY_ALBUMS_BY_ARTIST_START);
+            sortPart = QUERY_ALBUMS_BY_ARTIST_SORT;
+            boundIds = null;
+        }
 
         if (sortOrder != ORDER_BY_NONE) {
-            sb.append(QUERY_ALBUMS_BY_ARTIST_SORT);
+            sb.append(sortPart);
             if (sortOrder == ORDER_BY_DESC) {
                 sb.append("DESC");
             } else {
@@ -226,19 +835,24 @@ public class Datasource {
         // Check created SQL string
         // System.out.println("SQL statement = " + sb.toString());
 
-        try (Statement statement = conn.createStatement();
-             ResultSet results = statement.executeQuery(sb.toString())) {
-
-            List<String> albums = new ArrayList<>();
-            while (results.next()) {
-                albums.add(results.getString(1));
-            }
-            return albums;
+        try {
+            return withRetry(() -> {
+                try (PreparedStatement statement = prepareLookup(sb.toString(), boundIds, artistName);
+                     ResultSet results = statement.executeQuery()) {
 
+                    // Unknown artist (the common case for a miss): nothing to allocate
+                    if (!results.next()) {
+                        return Collections.emptyList();
+                    }
+                    List<String> albums = new ArrayList<>();
+                    do {
+                        albums.add(results.getString(1));
+                    } while (results.next());
+                    return Collections.unmodifiableList(albums);
+                }
+            });
         } catch (SQLException e) {
-            System.out.println("Query failed: " + e.getMessage());
-            e.printStackTrace();
-            return null;
+            throw DatasourceException.of("Query albums for artist failed: " + e.getMessage(), e);
         }
     }
 
@@ -247,14 +861,27 @@ public class Datasource {
     // ******
     public List<SongArtist> queryArtistForSong(String songName, int sortOrder) {
 
-        // Build query string
-        StringBuilder sb = new StringBuilder(QUERY_ARTIST_FOR_SONG_START);
-        sb.append(songName);
-        sb.append("\"");
+        StringBuilder sb;
+        String sortPart;
+        String boundIds;
+
+        // Resolve the song title via the name index first (see queryAlbumsForArtist)
+        int[] songIds = nameIndex != null ? nameIndex.songIds(songName) : new int[0];
+        if (songIds.length > 0) {
+            sb = new StringBuilder(QUERY_ARTIST_FOR_SONG_ID_START);
+            boundIds = appendIds(sb, songIds);
+            sb.append(QUERY_ARTIST_FOR_SONG_ID_OR_TITLE);
+            sortPart = QUERY_ARTIST_FOR_SONG_ID_SORT;
+        } else {
+            // Build query string
+            sb = new StringBuilder(QUERY_ARTIST_FOR_SONG_START);
+            sortPart = QUERY_ARTIST_FOR_SONG_SORT;
+            boundIds = null;
+        }
 
         // Add sorting part to query string
         if (sortOrder != ORDER_BY_NONE) {
-            sb.append(QUERY_ARTIST_FOR_SONG_SORT);
+            sb.append(sortPart);
             if (sortOrder == ORDER_BY_DESC) {
                 sb.append("DESC");
             } else {
@@ -268,33 +895,126 @@ public class Datasource {
         // Try by resources
         // Create a 'statement' for sending SQL statements to the database
         // Execute query, returning all artist records with all column values
-        try (Statement statement = conn.createStatement();
-             ResultSet results = statement.executeQuery(sb.toString())) {
+        try {
+            return withRetry(() -> {
+                try (PreparedStatement statement = prepareLookup(sb.toString(), boundIds, songName);
+                     ResultSet results = statement.executeQuery()) {
 
-            // Create ArrayList songArtists, for objects of type SongArtist
-            List<SongArtist> songArtists = new ArrayList<>();
+                    // Song not found: return the shared empty list
+                    if (!results.next()) {
+                        return Collections.emptyList();
+                    }
 
-            // Loop through query results
-            // Create a songArtist object for each record and save the record specifics
-            while (results.next()) {
-                SongArtist songArtist = new SongArtist();
-                songArtist.setArtistName(results.getString(1));
-                songArtist.setAlbumName(results.getString(2));
-                songArtist.setTrack(results.getInt(3));
+                    // Create ArrayList songArtists, for objects of type SongArtist
+                    List<SongArtist> songArtists = new ArrayList<>();
 
-                // Add songArtist object to the songArtists ArrayList
-                songArtists.add(songArtist);
-            }
+                    // Loop through query results
+                    // Create a songArtist object for each record and save the record specifics
+                    do {
+                        SongArtist songArtist = new SongArtist();
+                        songArtist.setArtistName(results.getString(1));
+                        songArtist.setAlbumName(results.getString(2));
+                        songArtist.setTrack(results.getInt(3));
 
-            // Return the songArtists ArrayList
-            return songArtists;
+                        // Add songArtist object to the songArtists ArrayList
+                        songArtists.add(songArtist);
+                    } while (results.next());
 
+                    // Return the songArtists ArrayList
+                    return Collections.unmodifiableList(songArtists);
+                }
+            });
         } catch (SQLException e) {
-            System.out.println("Query failed: " + e.getMessage());
-            e.printStackTrace();
-            return null;
+            throw DatasourceException.of("Query artist for song failed: " + e.getMessage(), e);
+        }
+
+    }
+
+    // ******
+    // Query albums table
+    // ******
+    public List<Album> queryAlbums() {
+
+        try {
+            return withRetry(() -> {
+                try (Statement statement = connection().createStatement();
+                     ResultSet results = statement.executeQuery("SELECT * FROM " + TABLE_ALBUMS)) {
+
+                    List<Album> albums = new ArrayList<>();
+                    while (results.next()) {
+                        Album album = new Album();
+                        album.setId(results.getInt(INDEX_ALBUM_ID));
+                        album.setName(results.getString(INDEX_ALBUM_NAME));
+                        album.setArtistId(results.getInt(INDEX_ALBUM_ARTIST));
+                        albums.add(album);
+                    }
+                    return Collections.unmodifiableList(albums);
+                }
+            });
+        } catch (SQLException e) {
+            throw DatasourceException.of("Query albums failed: " + e.getMessage(), e);
         }
+    }
 
+    // ******
+    // Query songs table
+    // ******
+    public List<Song> querySongs() {
+
+        try {
+            return withRetry(() -> {
+                try (Statement statement = connection().createStatement();
+                     ResultSet results = statement.executeQuery("SELECT * FROM " + TABLE_SONGS)) {
+
+                    List<Song> songs = new ArrayList<>();
+                    while (results.next()) {
+                        Song song = new Song();
+                        song.setId(results.getInt(INDEX_SONG_ID));
+                        song.setTrack(results.getInt(INDEX_SONG_TRACK));
+                        song.setName(results.getString(INDEX_SONG_TITLE));
+                        song.setAlbumId(results.getInt(INDEX_SONG_ALBUM));
+                        songs.add(song);
+                    }
+                    return Collections.unmodifiableList(songs);
+                }
+            });
+        } catch (SQLException e) {
+            throw DatasourceException.of("Query songs failed: " + e.getMessage(), e);
+        }
+    }
+
+    // ******
+    // Query artist names with their number of songs
+    // ******
+    public Map<String, Integer> queryArtistPopularity() {
+        return queryPopularity(QUERY_ARTIST_POPULARITY);
+    }
+
+    // ******
+    // Query song titles with the number of times they've been recorded
+    // ******
+    public Map<String, Integer> querySongPopularity() {
+        return queryPopularity(QUERY_SONG_POPULARITY);
+    }
+
+    private Map<String, Integer> queryPopularity(String sql) {
+        try {
+            return withRetry(() -> {
+                try (Statement statement = connection().createStatement();
+                     ResultSet results = statement.executeQuery(sql)) {
+
+                    Map<String, Integer> popularity = new HashMap<>();
+                    while (results.next()) {
+                        // Artists with the same name are counted together
+                        popularity.merge(results.getString(1), results.getInt(2), Integer::sum);
+                    }
+                    return popularity;
+                }
+            });
+        } catch (SQLException e) {
+            // Like the list queries: never null, a failure throws
+            throw DatasourceException.of("Query popularity failed: " + e.getMessage(), e);
+        }
     }
 
     // ******
@@ -306,7 +1026,7 @@ public class Datasource {
         // Next, gets the column count (note: starting from 1) and use a loop to print each column name.
         // The meta-data can be used to provide info such as column names and types and the attributes.
         String sql = "SELECT * FROM " + TABLE_SONGS;
-        try (Statement statement = conn.createStatement();
+        try (Statement statement = connection().createStatement();
              ResultSet results = statement.executeQuery(sql)) {
             ResultSetMetaData meta = results.getMetaData();
             int numColumns = meta.getColumnCount();
@@ -316,7 +1036,7 @@ public class Datasource {
             }
         } catch (SQLException e) {
             System.out.println("Query failed: " + e.getMessage());
-            e.getStackTrace();
+            e.printStackTrace();
         }
     }
 
@@ -330,16 +1050,20 @@ public class Datasource {
         // As the index can change when adding/removing columns
         // String sql = "SELECT COUNT(*) AS count, MIN(_id) AS min_id FROM " + table;
         String sql = "SELECT COUNT(*) AS count FROM " + table;
-        try(Statement statement = conn.createStatement();
-        ResultSet results = statement.executeQuery(sql)) {
-            int count = results.getInt("count"); // column name used as reference
-            // int min = results.getInt("min_id"); // column name used as reference
-            //System.out.format("Count = %d, Min = %d\n", count, min);
-            System.out.format("Count = %d\n", count);
-            return count;
+        try {
+            return withRetry(() -> {
+                try (Statement statement = connection().createStatement();
+                     ResultSet results = statement.executeQuery(sql)) {
+                    int count = results.getInt("count"); // column name used as reference
+                    // int min = results.getInt("min_id"); // column name used as reference
+                    //System.out.format("Count = %d, Min = %d\n", count, min);
+                    System.out.format("Count = %d\n", count);
+                    return count;
+                }
+            });
         } catch (SQLException e) {
             System.out.println("Query failed: " + e.getMessage());
-            e.getStackTrace();
+            e.printStackTrace();
             return -1;
         }
     }
@@ -348,37 +1072,451 @@ public class Datasource {
     // Method to create a view for artists songs
     // ******
     public boolean createViewForSongArtists() {
-        try(Statement statement = conn.createStatement()) {
-            System.out.println(CREATE_ARTIST_FOR_SONG_VIEW);
-            statement.execute(CREATE_ARTIST_FOR_SONG_VIEW);
-            return true;
+        try {
+            return withRetry(() -> {
+                try (Statement statement = connection().createStatement()) {
+                    System.out.println(CREATE_ARTIST_FOR_SONG_VIEW);
+                    statement.execute(CREATE_ARTIST_FOR_SONG_VIEW);
+                    return true;
+                }
+            });
         } catch (SQLException e) {
             System.out.println("Create View failed: " + e.getMessage());
-            e.getStackTrace();
+            e.printStackTrace();
             return false;
         }
     }
 
+    // ******
+    // Method to create the artists, albums and songs tables (if they don't exist yet)
+    // ******
+    public boolean createTables() {
+        try {
+            return withRetry(() -> {
+                try (Statement statement = connection().createStatement()) {
+                    statement.execute(CREATE_TABLE_ARTISTS);
+                    statement.execute(CREATE_TABLE_ALBUMS);
+                    statement.execute(CREATE_TABLE_SONGS);
+                    return true;
+                }
+            });
+        } catch (SQLException e) {
+            System.out.println("Create tables failed: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // ******
+    // Query song info via the view (prepared statement, so safe from SQL injection)
+    // ******
     public List<SongArtist> querySongInfoView(String title) {
 
         try {
-            querySongInfoView.setString(1, title);
-            ResultSet results = querySongInfoView.executeQuery();
+            return withRetry(() -> {
+                PreparedStatement query = await(querySongInfoView);
+                query.setString(1, title);
+                try (ResultSet results = query.executeQuery()) {
 
-            List<SongArtist> songArtists = new ArrayList<>();
-            while (results.next()) {
-                SongArtist songArtist = new SongArtist();
-                songArtist.setArtistName(results.getString(1));
-                songArtist.setAlbumName(results.getString(2));
-                songArtist.setTrack(results.getInt(3));
-                songArtists.add(songArtist);
-            }
-            return songArtists;
+                    if (!results.next()) {
+                        return Collections.emptyList();
+                    }
+                    List<SongArtist> songArtists = new ArrayList<>();
+                    do {
+                        SongArtist songArtist = new SongArtist();
+                        songArtist.setArtistName(results.getString(1));
+                        songArtist.setAlbumName(results.getString(2));
+                        songArtist.setTrack(results.getInt(3));
+                        songArtists.add(songArtist);
+                    } while (results.next());
+                    return Collections.unmodifiableList(songArtists);
+                }
+            });
 
         } catch (SQLException e) {
-            System.out.println("Query failed " + e.getMessage());
+            throw DatasourceException.of("Query song info failed: " + e.getMessage(), e);
+        }
+    }
+
+    // ******
+    // Get a number that changes whenever the database content changes
+    // Combines SQLite's data_version (changes made by other connections) with the writes done via this datasource.
+    // Both only ever go up, so the sum changes as soon as either of them does.
+    // Returns -1 if the version couldn't be read.
+    // ******
+    public long getDataVersion() {
+        try {
+            return withRetry(() -> {
+                try (Statement statement = connection().createStatement();
+                     ResultSet results = statement.executeQuery("PRAGMA data_version")) {
+                    if (!results.next()) {
+                        return -1L;
+                    }
+                    return results.getLong(1) + writeGeneration.get();
+                }
+            });
+        } catch (SQLException e) {
+            System.out.println("Query failed: " + e.getMessage());
             e.printStackTrace();
+            return -1;
+        }
+    }
+
+    // ******
+    // Get a number that changes whenever the database file is changed, by any program
+    // Unlike getDataVersion() this also covers changes made while this program wasn't running, so it can be
+    // saved and compared after a restart. Made from the size and modification time of the database file and
+    // of its write-ahead log (if there is one).
+    // Returns -1 for an in-memory database, or if the file can't be read.
+    // ******
+    public long getFileVersion() {
+        String prefix = "jdbc:sqlite:";
+        if (!connectionString.startsWith(prefix) || connectionString.contains(":memory:")) {
+            return -1;
+        }
+        String dbFile = connectionString.substring(prefix.length());
+        try {
+            long version = 17;
+            for (Path path : new Path[]{Paths.get(dbFile), Paths.get(dbFile + "-wal")}) {
+                if (Files.exists(path)) {
+                    version = 31 * version + Files.size(path);
+                    version = 31 * version + Files.getLastModifiedTime(path).toMillis();
+                }
+            }
+            return version & Long.MAX_VALUE; // never -1
+        } catch (IOException e) {
+            System.out.println("Couldn't read database file version: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    // ******
+    // Get the name index of this database file
+    // Only the first datasource to open a file builds it, the others (also ones opening at the same time)
+    // use that same index. Inserts through any of them keep it up to date.
+    // Rows written some other way (another program, or plain JDBC like the CatalogGenerator) aren't in the index
+    // until every datasource of the file was closed, or invalidateNameIndex() was called, and the next one builds
+    // it again. The queries match the exact name as well, so those rows are only missed when they're looked up by
+    // a variant of their name.
+    // An in-memory database is private to its connection, so it gets an index of its own.
+    // ******
+    private void buildNameIndex() {
+        long start = System.nanoTime();
+        if (connectionString.contains(":memory:")) {
+            nameIndex = loadNameIndex();
+            return;
+        }
+
+        SharedNameIndex shared;
+        boolean first;
+        synchronized (SHARED_NAME_INDEXES) {
+            shared = SHARED_NAME_INDEXES.get(connectionString);
+            first = shared == null;
+            if (first) {
+                shared = new SharedNameIndex();
+                SHARED_NAME_INDEXES.put(connectionString, shared);
+            }
+            shared.users++;
+        }
+        sharedNameIndex = shared;
+        if (!first) {
+            nameIndex = shared.index.join();
+            startupTimer("name index (shared)", start);
+            return;
+        }
+
+        NameIndex index = loadNameIndex();
+        if (index == null) {
+            // Let the next datasource that opens this file try again
+            synchronized (SHARED_NAME_INDEXES) {
+                SHARED_NAME_INDEXES.remove(connectionString, shared);
+            }
+        }
+        shared.index.complete(index);
+        nameIndex = index;
+        startupTimer("name index", start);
+    }
+
+    // ******
+    // Stop using the shared name index, dropping it if this was the last open datasource of the file
+    // Waits for a background build (see openAsync()) first, so it's never registered after this
+    // ******
+    private void releaseNameIndex() {
+        if (nameIndexBuilt != null) {
+            try {
+                nameIndexBuilt.join();
+            } catch (CompletionException e) {
+                // Not built, so nothing to release
+            }
+            nameIndexBuilt = null;
+        }
+        nameIndex = null;
+        SharedNameIndex shared = sharedNameIndex;
+        if (shared == null) {
+            return;
+        }
+        sharedNameIndex = null;
+        synchronized (SHARED_NAME_INDEXES) {
+            shared.users--;
+            if (shared.users == 0) {
+                SHARED_NAME_INDEXES.remove(connectionString, shared);
+            }
+        }
+    }
+
+    // ******
+    // Let the next datasource to open the database build its name index again
+    // For a program that wrote rows past the datasources (like the CatalogGenerator). The datasources that are
+    // open keep the index they have; they release it as usual on close() (see releaseNameIndex()).
+    // ******
+    public static void invalidateNameIndex(String connectionString) {
+        synchronized (SHARED_NAME_INDEXES) {
+            SHARED_NAME_INDEXES.remove(connectionString);
+        }
+    }
+
+    // ******
+    // Build a name index from all artists and songs in the database, null if that failed
+    // ******
+    private NameIndex loadNameIndex() {
+        List<Artist> artists;
+        List<Song> songs;
+        try {
+            artists = queryArtists(ORDER_BY_NONE);
+            songs = querySongs();
+        } catch (DatasourceException e) {
+            System.out.println("Couldn't build name index, using exact name matching: " + e.getMessage());
             return null;
         }
+
+        NameIndex.Builder builder = new NameIndex.Builder();
+        for (Artist artist : artists) {
+            builder.addArtist(artist.getId(), artist.getName());
+        }
+        for (Song song : songs) {
+            builder.addSong(song.getId(), song.getName());
+        }
+        return builder.build();
+    }
+
+    public NameIndex getNameIndex() {
+        return nameIndex;
+    }
+
+    // ******
+    // Append the ids of an "IN (" list to a query string
+    // A short list is written into the SQL (the ids are ints, so they can safely be concatenated).
+    // A common title can have hundreds of thousands of ids, which would make the SQL longer than SQLite
+    // accepts (SQLITE_MAX_SQL_LENGTH, 1,000,000 bytes by default). Those are bound as a single parameter
+    // instead, a JSON array that json_each() turns back into rows.
+    // Returns the value to bind to the parameter, or null if the ids are in the SQL.
+    // ******
+    private static String appendIds(StringBuilder sb, int[] ids) {
+        if (ids.length > MAX_INLINE_IDS) {
+            sb.append("SELECT value FROM json_each(?)");
+            return Arrays.toString(ids); // [1, 2, 3] is a JSON array
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(ids[i]);
+        }
+        return null;
+    }
+
+    // ******
+    // Prepare a name lookup: binds the ids if appendIds() didn't write them into the SQL, then the name
+    // The statement is closed again if binding fails, as the caller never gets it
+    // ******
+    private PreparedStatement prepareLookup(String sql, String boundIds, String name) throws SQLException {
+        PreparedStatement statement = connection().prepareStatement(sql);
+        try {
+            int parameter = 1;
+            if (boundIds != null) {
+                statement.setString(parameter++, boundIds);
+            }
+            statement.setString(parameter, name);
+            return statement;
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+    }
+
+    // ******
+    // Insert an artist, returning its _id
+    // If the artist already exists, the existing _id is returned
+    // ******
+    private int insertArtist(String name) throws SQLException {
+
+        PreparedStatement queryArtist = await(this.queryArtist);
+        PreparedStatement insertIntoArtists = insertArtistStatement();
+        queryArtist.setString(1, name);
+        try (ResultSet results = queryArtist.executeQuery()) {
+            if (results.next()) {
+                return results.getInt(1);
+            }
+        }
+
+        // Insert the artist
+        insertIntoArtists.setString(1, name);
+        if (normalizedArtistNames) {
+            insertIntoArtists.setString(2, NameIndex.normalize(name));
+        }
+        int affectedRows = insertIntoArtists.executeUpdate();
+        if (affectedRows != 1) {
+            throw new SQLException("Couldn't insert artist!");
+        }
+
+        try (ResultSet generatedKeys = insertIntoArtists.getGeneratedKeys()) {
+            if (generatedKeys.next()) {
+                return generatedKeys.getInt(1);
+            } else {
+                throw new SQLException("Couldn't get _id for artist");
+            }
+        }
+    }
+
+    // ******
+    // Insert an album for an artist, returning its _id
+    // If the artist already has an album with this name, the existing _id is returned
+    // ******
+    private int insertAlbum(String name, int artistId) throws SQLException {
+
+        PreparedStatement queryAlbum = await(this.queryAlbum);
+        PreparedStatement insertIntoAlbums = await(this.insertIntoAlbums);
+        queryAlbum.setString(1, name);
+        queryAlbum.setInt(2, artistId);
+        try (ResultSet results = queryAlbum.executeQuery()) {
+            if (results.next()) {
+                return results.getInt(1);
+            }
+        }
+
+        // Insert the album
+        insertIntoAlbums.setString(1, name);
+        insertIntoAlbums.setInt(2, artistId);
+        int affectedRows = insertIntoAlbums.executeUpdate();
+        if (affectedRows != 1) {
+            throw new SQLException("Couldn't insert album!");
+        }
+
+        try (ResultSet generatedKeys = insertIntoAlbums.getGeneratedKeys()) {
+            if (generatedKeys.next()) {
+                return generatedKeys.getInt(1);
+            } else {
+                throw new SQLException("Couldn't get _id for album");
+            }
+        }
+    }
+
+    // ******
+    // Insert a song, together with its artist and album (if they don't exist yet)
+    // All inserts are done in a single transaction, so either everything or nothing is saved
+    // A transaction that failed because the database was busy is rolled back, so it's safe to run it again
+    // ******
+    public boolean insertSong(String title, String artist, String album, int track) {
+        try {
+            return withRetry(() -> insertSongTransaction(title, artist, album, track));
+        } catch (SQLException e) {
+            System.out.println("Insert song exception: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean insertSongTransaction(String title, String artist, String album, int track) throws SQLException {
+
+        Connection conn = connection();
+        PreparedStatement insertIntoSongs = await(this.insertIntoSongs);
+        try {
+            conn.setAutoCommit(false);
+
+            int artistId = insertArtist(artist);
+            int albumId = insertAlbum(album, artistId);
+            insertIntoSongs.setInt(1, track);
+            insertIntoSongs.setString(2, title);
+            insertIntoSongs.setInt(3, albumId);
+            int affectedRows = insertIntoSongs.executeUpdate();
+            if (affectedRows != 1) {
+                throw new SQLException("The song insert failed");
+            }
+            int songId;
+            try (ResultSet generatedKeys = insertIntoSongs.getGeneratedKeys()) {
+                songId = generatedKeys.next() ? generatedKeys.getInt(1) : -1;
+            }
+
+            conn.commit();
+            writeGeneration.incrementAndGet();
+
+            // Keep the name index up to date (only after the commit, so it never holds rolled back ids)
+            if (nameIndex != null) {
+                nameIndex.addArtist(artistId, artist);
+                if (songId >= 0) {
+                    nameIndex.addSong(songId, title);
+                }
+            }
+            // And the autocompletes: one more song for the artist, one more recording of the title
+            Autocomplete artists = artistAutocomplete;
+            if (artists != null) {
+                artists.increment(artist);
+            }
+            Autocomplete songs = songAutocomplete;
+            if (songs != null) {
+                songs.increment(title);
+            }
+            return true;
+
+        } catch (SQLException e) {
+            try {
+                System.out.println("Performing rollback");
+                conn.rollback();
+            } catch (SQLException e2) {
+                System.out.println("Rollback failed: " + e2.getMessage());
+            }
+            throw e;
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                System.out.println("Couldn't reset auto-commit! " + e.getMessage());
+            }
+        }
+    }
+
+    // ******
+    // Run a piece of JDBC work, and run it again when it fails because the database is busy or locked
+    // Waits between the attempts as the retry policy says. Any other error, or running out of attempts,
+    // is thrown to the caller.
+    // ******
+    private <T> T withRetry(SqlWork<T> work) throws SQLException {
+        int attempt = 1;
+        while (true) {
+            try {
+                T result = work.run();
+                if (attempt > 1) {
+                    contentionMetrics.recordRecovered();
+                }
+                return result;
+            } catch (SQLException e) {
+                if (!RetryPolicy.isBusy(e)) {
+                    throw e;
+                }
+                contentionMetrics.recordBusy();
+                if (!retryPolicy.shouldRetry(e, attempt)) {
+                    contentionMetrics.recordFailure();
+                    throw e;
+                }
+                long start = System.nanoTime();
+                try {
+                    Thread.sleep(retryPolicy.backoffMillis(attempt));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                contentionMetrics.recordRetry(System.nanoTime() - start);
+                attempt++;
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,38 @@
+package com.pbe.model;
+
+import java.sql.SQLException;
+
+// *********************
+// Datasource query failure
+// *********************
+// Thrown by the Datasource list queries (queryArtists, queryAlbumsForArtist, queryArtistForSong,
+// querySongInfoView, queryAlbums, querySongs) instead of returning null.
+// A query that simply finds nothing returns an empty list; this exception always means something went wrong.
+// That way callers can use the result straight away, without checking for null first.
+//
+// It's unchecked, so callers that can't do anything useful about a failure don't need to catch it.
+// Callers that can (e.g. answer with an error instead of crashing) catch this class, or one of its subclasses:
+// - DatabaseBusyException: the database stayed locked by another connection, trying again later may work
+public class DatasourceException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DatasourceException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    // ******
+    // Wrap a failed query in the most specific exception type
+    // ******
+    public static DatasourceException of(String message, SQLException cause) {
+        if (RetryPolicy.isBusy(cause)) {
+            return new DatabaseBusyException(message, cause);
+        }
+        return new DatasourceException(message, cause);
+    }
+
+    // SQLite result code of the failure (e.g. 5 for SQLITE_BUSY), or 0 if unknown
+    public int getErrorCode() {
+        return getCause() instanceof SQLException ? ((SQLException) getCause()).getErrorCode() : 0;
+    }
+}
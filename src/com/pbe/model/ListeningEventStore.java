@@ -0,0 +1,550 @@
+package com.pbe.model;
+
+import com.pbe.migration.CatalogMigrations;
+import com.pbe.migration.SchemaMigrator;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// *********************
+// Listening event store
+// *********************
+// Records 'song was played' events, and answers "what were the most played songs / artists between A and B".
+//
+// Writing
+// Inserting every event on its own would mean a transaction (and a disk sync) per event, which SQLite can
+// only do a few hundred times per second. Instead, record() only adds the event to an in-memory buffer.
+// A background thread flushes the buffer every second (or as soon as it's full), in a single transaction:
+// - The raw events are appended to a table per day (play_events_YYYYMMDD), so old days can simply be dropped
+// - The events are counted per (minute, song) and per (hour, song) in memory first, and those counts are
+//   added to the rollup tables with an upsert (INSERT ... ON CONFLICT DO UPDATE)
+// There are two buffers: while one is being written to the database, record() fills the other one.
+// If both are full (the database can't keep up), new events are dropped and counted, rather than
+// making the callers wait.
+//
+// Reading
+// The top-K queries never touch the raw events. A window is split into whole hours (read from the hour
+// rollup) and the minutes before and after them (read from the minute rollup). So a day is 24 hour
+// rows per song, not tens of millions of events. Only the top K are joined back to songs/albums/artists.
+// Windows are rounded outward to whole minutes, the resolution of the rollups.
+//
+// Times are milliseconds since the epoch (System.currentTimeMillis()), partitions are per UTC day.
+//
+// The rollup tables are part of the catalog schema (see CatalogMigrations), so open() applies the schema changes
+// the database hasn't had yet. The day partitions come and go with the data, so the store creates those itself.
+public class ListeningEventStore {
+
+    public static final int DEFAULT_BUFFER_CAPACITY = 64 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final long MILLIS_PER_MINUTE = 60_000;
+    private static final long MINUTES_PER_HOUR = 60;
+
+    // Raw events, one table per day: play_events_20240131
+    public static final String TABLE_EVENTS_PREFIX = "play_events_";
+    public static final String COLUMN_EVENT_SONG = "song";
+    public static final String COLUMN_EVENT_PLAYED_AT = "played_at";
+
+    // Rollups: number of plays per song per minute / hour (minutes and hours since the epoch)
+    public static final String TABLE_PLAYS_PER_MINUTE = "plays_per_minute";
+    public static final String TABLE_PLAYS_PER_HOUR = "plays_per_hour";
+    public static final String COLUMN_ROLLUP_BUCKET = "bucket";
+    public static final String COLUMN_ROLLUP_SONG = "song";
+    public static final String COLUMN_ROLLUP_PLAYS = "plays";
+
+    private static final DateTimeFormatter PARTITION_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    // WITHOUT ROWID: the rows are stored in primary key order, so a range of buckets is read in one go
+    // Used by the catalog migrations (see CatalogMigrations.PlayRollups)
+    public static final String CREATE_TABLE_PLAYS_PER_MINUTE = createRollup(TABLE_PLAYS_PER_MINUTE);
+    public static final String CREATE_TABLE_PLAYS_PER_HOUR = createRollup(TABLE_PLAYS_PER_HOUR);
+
+    // INSERT INTO plays_per_minute (bucket, song, plays) VALUES (?, ?, ?)
+    // ON CONFLICT (bucket, song) DO UPDATE SET plays = plays + excluded.plays
+    public static final String UPSERT_PLAYS_PER_MINUTE = upsertRollup(TABLE_PLAYS_PER_MINUTE);
+    public static final String UPSERT_PLAYS_PER_HOUR = upsertRollup(TABLE_PLAYS_PER_HOUR);
+
+    // Plays per song in a window: the hour range, plus the minute ranges before and after it
+    // Parameters: first hour, end hour, first minute, end minute, first minute, end minute
+    private static final String WINDOW_PLAYS =
+            "SELECT " + COLUMN_ROLLUP_SONG + ", SUM(" + COLUMN_ROLLUP_PLAYS + ") AS " + COLUMN_ROLLUP_PLAYS +
+                    " FROM (" +
+                    rollupRange(TABLE_PLAYS_PER_HOUR) + " UNION ALL " +
+                    rollupRange(TABLE_PLAYS_PER_MINUTE) + " UNION ALL " +
+                    rollupRange(TABLE_PLAYS_PER_MINUTE) +
+                    ") GROUP BY " + COLUMN_ROLLUP_SONG;
+
+    // Top songs: the top K is picked from the rollups first, and only those K rows are joined
+    public static final String QUERY_TOP_SONGS =
+            "SELECT top." + COLUMN_ROLLUP_SONG + ", " + Datasource.TABLE_SONGS + '.' + Datasource.COLUMN_SONG_TITLE + ", " +
+                    Datasource.TABLE_ARTISTS + '.' + Datasource.COLUMN_ARTIST_NAME + ", " +
+                    Datasource.TABLE_ALBUMS + '.' + Datasource.COLUMN_ALBUM_NAME + ", top." + COLUMN_ROLLUP_PLAYS +
+                    " FROM (" + WINDOW_PLAYS + " ORDER BY " + COLUMN_ROLLUP_PLAYS + " DESC LIMIT ?) AS top" +
+                    joinSongAlbumArtist("top") +
+                    " ORDER BY top." + COLUMN_ROLLUP_PLAYS + " DESC";
+
+    // Top artists: the plays per song in the window are added up per artist
+    public static final String QUERY_TOP_ARTISTS =
+            "SELECT " + Datasource.TABLE_ARTISTS + '.' + Datasource.COLUMN_ARTIST_ID + ", " +
+                    Datasource.TABLE_ARTISTS + '.' + Datasource.COLUMN_ARTIST_NAME + ", " +
+                    "SUM(played." + COLUMN_ROLLUP_PLAYS + ") AS total" +
+                    " FROM (" + WINDOW_PLAYS + ") AS played" +
+                    joinSongAlbumArtist("played") +
+                    " GROUP BY " + Datasource.TABLE_ARTISTS + '.' + Datasource.COLUMN_ARTIST_ID +
+                    " ORDER BY total DESC LIMIT ?";
+
+    private final String connectionString;
+    private final long flushIntervalMillis;
+    private Connection conn;
+    private ScheduledExecutorService flusher;
+
+    // The buffer record() adds to, and the one that's being written to the database
+    private final Object bufferLock = new Object();
+    private long[] playedAt;
+    private int[] songIds;
+    private int size;
+    private long[] flushPlayedAt;
+    private int[] flushSongIds;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    // Day partitions that are known to exist
+    private final Set<String> partitions = new HashSet<>();
+
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private final ContentionMetrics contentionMetrics = new ContentionMetrics();
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public ListeningEventStore() {
+        this(Datasource.CONNECTION_STRING);
+    }
+
+    public ListeningEventStore(String connectionString) {
+        this(connectionString, DEFAULT_BUFFER_CAPACITY, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public ListeningEventStore(String connectionString, int bufferCapacity, long flushIntervalMillis) {
+        this.connectionString = connectionString;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.playedAt = new long[bufferCapacity];
+        this.songIds = new int[bufferCapacity];
+        this.flushPlayedAt = new long[bufferCapacity];
+        this.flushSongIds = new int[bufferCapacity];
+    }
+
+    // Retry policy for flushes that find the database busy (must be set before open())
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public ContentionMetrics getContentionMetrics() {
+        return contentionMetrics;
+    }
+
+    // ******
+    // Open the connection, make sure the rollup tables exist and start flushing in the background
+    // Only the schema changes are applied here, backfills of the catalog are left to a Datasource or the migrator
+    // ******
+    public boolean open() {
+        try {
+            conn = DriverManager.getConnection(connectionString);
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("PRAGMA busy_timeout = " + Datasource.DEFAULT_BUSY_TIMEOUT_MILLIS);
+            }
+            new SchemaMigrator(connectionString, CatalogMigrations.all()).migrateSchema(conn);
+        } catch (SQLException e) {
+            System.out.println("Couldn't open listening event store: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "listening-event-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    // ******
+    // Stop flushing in the background, write what's still buffered, and close the connection
+    // ******
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusher = null;
+        }
+        flush();
+        try {
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            System.out.println("Couldn't close listening event store: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // ******
+    // Record that a song was played just now
+    // ******
+    public boolean record(int songId) {
+        return record(songId, System.currentTimeMillis());
+    }
+
+    // ******
+    // Record that a song was played at the given time
+    // Returns false if the event was dropped, because the buffers are full
+    // ******
+    public boolean record(int songId, long playedAtMillis) {
+        boolean full;
+        synchronized (bufferLock) {
+            if (size == songIds.length) {
+                dropped.increment();
+                return false;
+            }
+            playedAt[size] = playedAtMillis;
+            songIds[size] = songId;
+            size++;
+            full = size == songIds.length;
+        }
+        recorded.increment();
+
+        // Don't wait for the next scheduled flush
+        ScheduledExecutorService current = flusher;
+        if (full && current != null && flushRequested.compareAndSet(false, true)) {
+            try {
+                current.execute(this::flush);
+            } catch (RuntimeException e) {
+                flushRequested.set(false); // shutting down, close() flushes
+            }
+        }
+        return true;
+    }
+
+    // ******
+    // Write the buffered events to the database
+    // Called by the background thread, but can also be called directly (e.g. before running a report)
+    // ******
+    public synchronized void flush() {
+        flushRequested.set(false);
+        int count;
+        synchronized (bufferLock) {
+            count = size;
+            if (count == 0) {
+                return;
+            }
+            // Swap the buffers: record() continues in the empty one
+            long[] times = playedAt;
+            int[] songs = songIds;
+            playedAt = flushPlayedAt;
+            songIds = flushSongIds;
+            size = 0;
+            flushPlayedAt = times;
+            flushSongIds = songs;
+        }
+
+        int attempt = 1;
+        while (true) {
+            try {
+                writeEvents(flushPlayedAt, flushSongIds, count);
+                written.add(count);
+                if (attempt > 1) {
+                    contentionMetrics.recordRecovered();
+                }
+                return;
+            } catch (SQLException e) {
+                boolean busy = RetryPolicy.isBusy(e);
+                if (busy) {
+                    contentionMetrics.recordBusy();
+                }
+                if (!busy || !retryPolicy.shouldRetry(e, attempt)) {
+                    if (busy) {
+                        contentionMetrics.recordFailure();
+                    }
+                    System.out.println("Couldn't write " + count + " listening events: " + e.getMessage());
+                    e.printStackTrace();
+                    dropped.add(count);
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
+                    Thread.sleep(retryPolicy.backoffMillis(attempt));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    dropped.add(count);
+                    return;
+                }
+                contentionMetrics.recordRetry(System.nanoTime() - start);
+                attempt++;
+            }
+        }
+    }
+
+    // ******
+    // Most played songs in [fromMillis, toMillis), most played first
+    // ******
+    public synchronized List<SongPlays> topSongs(long fromMillis, long toMillis, int k) {
+        try (PreparedStatement statement = conn.prepareStatement(QUERY_TOP_SONGS)) {
+            int index = setWindow(statement, fromMillis, toMillis);
+            statement.setInt(index, k);
+            try (ResultSet results = statement.executeQuery()) {
+                if (!results.next()) {
+                    return Collections.emptyList();
+                }
+                List<SongPlays> top = new ArrayList<>(k);
+                do {
+                    SongPlays songPlays = new SongPlays();
+                    songPlays.setSongId(results.getInt(1));
+                    songPlays.setTitle(results.getString(2));
+                    songPlays.setArtistName(results.getString(3));
+                    songPlays.setAlbumName(results.getString(4));
+                    songPlays.setPlays(results.getLong(5));
+                    top.add(songPlays);
+                } while (results.next());
+                return top;
+            }
+        } catch (SQLException e) {
+            throw DatasourceException.of("Query top songs failed: " + e.getMessage(), e);
+        }
+    }
+
+    // ******
+    // Most played artists in [fromMillis, toMillis), most played first
+    // ******
+    public synchronized List<ArtistPlays> topArtists(long fromMillis, long toMillis, int k) {
+        try (PreparedStatement statement = conn.prepareStatement(QUERY_TOP_ARTISTS)) {
+            int index = setWindow(statement, fromMillis, toMillis);
+            statement.setInt(index, k);
+            try (ResultSet results = statement.executeQuery()) {
+                if (!results.next()) {
+                    return Collections.emptyList();
+                }
+                List<ArtistPlays> top = new ArrayList<>(k);
+                do {
+                    ArtistPlays artistPlays = new ArtistPlays();
+                    artistPlays.setArtistId(results.getInt(1));
+                    artistPlays.setName(results.getString(2));
+                    artistPlays.setPlays(results.getLong(3));
+                    top.add(artistPlays);
+                } while (results.next());
+                return top;
+            }
+        } catch (SQLException e) {
+            throw DatasourceException.of("Query top artists failed: " + e.getMessage(), e);
+        }
+    }
+
+    // ******
+    // Remove the raw events and minute rollups from before the given time
+    // The hour rollups are kept, so top-K queries on whole hours keep working for old windows
+    // Whole day partitions are dropped, which is much cheaper than deleting their rows
+    // ******
+    public synchronized boolean purgeBefore(long beforeMillis) {
+        String firstKept = partitionFor(beforeMillis);
+        try (Statement statement = conn.createStatement()) {
+            List<String> old = new ArrayList<>();
+            try (ResultSet results = statement.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table'" +
+                    " AND name LIKE '" + TABLE_EVENTS_PREFIX + "%'")) {
+                while (results.next()) {
+                    String table = results.getString(1);
+                    if (table.compareTo(firstKept) < 0) { // yyyyMMdd sorts like the dates themselves
+                        old.add(table);
+                    }
+                }
+            }
+            for (String table : old) {
+                statement.execute("DROP TABLE " + table);
+                partitions.remove(table);
+            }
+            statement.execute("DELETE FROM " + TABLE_PLAYS_PER_MINUTE + " WHERE " + COLUMN_ROLLUP_BUCKET +
+                    " < " + Math.floorDiv(beforeMillis, MILLIS_PER_MINUTE));
+            return true;
+        } catch (SQLException e) {
+            System.out.println("Purge failed: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public long getRecorded() {
+        return recorded.sum();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public void printStats() {
+        System.out.format("Listening events: %d recorded, %d written, %d dropped\n",
+                getRecorded(), getWritten(), getDropped());
+    }
+
+    // ******
+    // Write a batch of events and their rollup counts in one transaction
+    // ******
+    private void writeEvents(long[] times, int[] songs, int count) throws SQLException {
+        // Count per (bucket, song) first, so every bucket and song gets a single upsert per flush
+        // The key holds the bucket in the high 32 bits and the song _id in the low 32 bits
+        Map<Long, Integer> perMinute = new HashMap<>();
+        Map<Long, Integer> perHour = new HashMap<>();
+        Map<String, List<Integer>> perPartition = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            long minute = Math.floorDiv(times[i], MILLIS_PER_MINUTE);
+            long song = songs[i] & 0xffffffffL;
+            perMinute.merge((minute << 32) | song, 1, Integer::sum);
+            perHour.merge((Math.floorDiv(minute, MINUTES_PER_HOUR) << 32) | song, 1, Integer::sum);
+            perPartition.computeIfAbsent(partitionFor(times[i]), k -> new ArrayList<>()).add(i);
+        }
+
+        try {
+            conn.setAutoCommit(false);
+            for (Map.Entry<String, List<Integer>> partition : perPartition.entrySet()) {
+                createPartition(partition.getKey());
+                try (PreparedStatement insert = conn.prepareStatement("INSERT INTO " + partition.getKey() +
+                        " (" + COLUMN_EVENT_SONG + ", " + COLUMN_EVENT_PLAYED_AT + ") VALUES (?, ?)")) {
+                    for (int i : partition.getValue()) {
+                        insert.setInt(1, songs[i]);
+                        insert.setLong(2, times[i]);
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                }
+            }
+            upsertRollup(UPSERT_PLAYS_PER_MINUTE, perMinute);
+            upsertRollup(UPSERT_PLAYS_PER_HOUR, perHour);
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException e2) {
+                System.out.println("Rollback failed: " + e2.getMessage());
+            }
+            // A rolled back partition may not exist after all
+            partitions.removeAll(perPartition.keySet());
+            throw e;
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                System.out.println("Couldn't reset auto-commit! " + e.getMessage());
+            }
+        }
+    }
+
+    private void upsertRollup(String sql, Map<Long, Integer> counts) throws SQLException {
+        try (PreparedStatement upsert = conn.prepareStatement(sql)) {
+            for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+                upsert.setLong(1, entry.getKey() >> 32);
+                upsert.setInt(2, (int) (long) entry.getKey());
+                upsert.setInt(3, entry.getValue());
+                upsert.addBatch();
+            }
+            upsert.executeBatch();
+        }
+    }
+
+    private void createPartition(String table) throws SQLException {
+        if (partitions.contains(table)) {
+            return;
+        }
+        try (Statement statement = conn.createStatement()) {
+            // No index: the raw events are only appended (and dropped per day), never searched
+            statement.execute("CREATE TABLE IF NOT EXISTS " + table + " (" +
+                    COLUMN_EVENT_SONG + " INTEGER NOT NULL, " + COLUMN_EVENT_PLAYED_AT + " INTEGER NOT NULL)");
+        }
+        partitions.add(table);
+    }
+
+    private static String partitionFor(long millis) {
+        return TABLE_EVENTS_PREFIX + PARTITION_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    // ******
+    // Split the window into whole hours and the minutes around them, and set the 6 range parameters
+    // Returns the index of the next parameter
+    // ******
+    private static int setWindow(PreparedStatement statement, long fromMillis, long toMillis) throws SQLException {
+        long fromMinute = Math.floorDiv(fromMillis, MILLIS_PER_MINUTE);
+        long toMinute = -Math.floorDiv(-toMillis, MILLIS_PER_MINUTE); // rounded up
+        long firstHour = -Math.floorDiv(-fromMinute, MINUTES_PER_HOUR);
+        long endHour = Math.floorDiv(toMinute, MINUTES_PER_HOUR);
+
+        if (firstHour < endHour) {
+            statement.setLong(1, firstHour);
+            statement.setLong(2, endHour);
+            statement.setLong(3, fromMinute);
+            statement.setLong(4, firstHour * MINUTES_PER_HOUR);
+            statement.setLong(5, endHour * MINUTES_PER_HOUR);
+            statement.setLong(6, toMinute);
+        } else {
+            // Less than a whole hour: only minutes (the second minute range and the hour range stay empty)
+            statement.setLong(1, 0);
+            statement.setLong(2, 0);
+            statement.setLong(3, fromMinute);
+            statement.setLong(4, toMinute);
+            statement.setLong(5, 0);
+            statement.setLong(6, 0);
+        }
+        return 7;
+    }
+
+    private static String createRollup(String table) {
+        return "CREATE TABLE IF NOT EXISTS " + table + " (" + COLUMN_ROLLUP_BUCKET + " INTEGER NOT NULL, " +
+                COLUMN_ROLLUP_SONG + " INTEGER NOT NULL, " + COLUMN_ROLLUP_PLAYS + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + COLUMN_ROLLUP_BUCKET + ", " + COLUMN_ROLLUP_SONG + ")) WITHOUT ROWID";
+    }
+
+    private static String upsertRollup(String table) {
+        return "INSERT INTO " + table + " (" + COLUMN_ROLLUP_BUCKET + ", " + COLUMN_ROLLUP_SONG + ", " +
+                COLUMN_ROLLUP_PLAYS + ") VALUES (?, ?, ?) ON CONFLICT (" + COLUMN_ROLLUP_BUCKET + ", " +
+                COLUMN_ROLLUP_SONG + ") DO UPDATE SET " + COLUMN_ROLLUP_PLAYS + " = " + COLUMN_ROLLUP_PLAYS +
+                " + excluded." + COLUMN_ROLLUP_PLAYS;
+    }
+
+    private static String rollupRange(String table) {
+        return "SELECT " + COLUMN_ROLLUP_SONG + ", " + COLUMN_ROLLUP_PLAYS + " FROM " + table +
+                " WHERE " + COLUMN_ROLLUP_BUCKET + " >= ? AND " + COLUMN_ROLLUP_BUCKET + " < ?";
+    }
+
+    private static String joinSongAlbumArtist(String alias) {
+        return " INNER JOIN " + Datasource.TABLE_SONGS + " ON " + Datasource.TABLE_SONGS + '.' +
+                Datasource.COLUMN_SONG_ID + " = " + alias + '.' + COLUMN_ROLLUP_SONG +
+                " INNER JOIN " + Datasource.TABLE_ALBUMS + " ON " + Datasource.TABLE_ALBUMS + '.' +
+                Datasource.COLUMN_ALBUM_ID + " = " + Datasource.TABLE_SONGS + '.' + Datasource.COLUMN_SONG_ALBUM +
+                " INNER JOIN " + Datasource.TABLE_ARTISTS + " ON " + Datasource.TABLE_ARTISTS + '.' +
+                Datasource.COLUMN_ARTIST_ID + " = " + Datasource.TABLE_ALBUMS + '.' + Datasource.COLUMN_ALBUM_ARTIST;
+    }
+}
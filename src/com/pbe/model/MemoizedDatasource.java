@@ -0,0 +1,128 @@
+package com.pbe.model;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// *********************
+// Memoized queries
+// *********************
+// Remembers query results, and serves them again for as long as the database hasn't changed.
+// Before every call, the data version of the database is checked (see Datasource.getDataVersion()).
+// That's a single PRAGMA, which is much cheaper than running the query itself:
+// - Same version as when the result was cached: the cached result is returned, no query is run
+// - Different version: all cached results are dropped, and the query is run again
+// So there's no need to guess how long a result stays valid (a 'time to live'):
+// a stable catalog is served from memory, and a change is picked up on the very next call.
+//
+// The cached lists are shared between callers, so they're returned as unmodifiable lists.
+public class MemoizedDatasource {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private final Datasource datasource;
+    private final Map<String, List<?>> cache;
+
+    // The data version the cached results belong to
+    private long cachedVersion = -1;
+
+    private long hits;
+    private long misses;
+
+    public MemoizedDatasource(Datasource datasource) {
+        this(datasource, DEFAULT_MAX_ENTRIES);
+    }
+
+    public MemoizedDatasource(Datasource datasource, int maxEntries) {
+        this.datasource = datasource;
+        // Access-ordered LinkedHashMap: once full, the least recently used result is dropped
+        this.cache = new LinkedHashMap<String, List<?>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<?>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public Datasource getDatasource() {
+        return datasource;
+    }
+
+    public List<Artist> queryArtists(int sortOrder) {
+        return memoize("artists:" + sortOrder, () -> datasource.queryArtists(sortOrder));
+    }
+
+    public List<String> queryAlbumsForArtist(String artistName, int sortOrder) {
+        return memoize("albums:" + sortOrder + ':' + artistName,
+                () -> datasource.queryAlbumsForArtist(artistName, sortOrder));
+    }
+
+    public List<SongArtist> queryArtistForSong(String songName, int sortOrder) {
+        return memoize("artistForSong:" + sortOrder + ':' + songName,
+                () -> datasource.queryArtistForSong(songName, sortOrder));
+    }
+
+    public List<SongArtist> querySongInfoView(String title) {
+        return memoize("songInfo:" + title, () -> datasource.querySongInfoView(title));
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        cachedVersion = -1;
+    }
+
+    private interface Query<T> {
+        List<T> run();
+    }
+
+    // ******
+    // Look up a result, running the query on a miss
+    // The lock is only held to look up and store results: the data version check and the query itself run
+    // without it, so a slow miss doesn't hold up the callers of other (or the same) keys.
+    // Two callers missing on the same key at the same time both run the query; the second result replaces the first.
+    // ******
+    @SuppressWarnings("unchecked")
+    private <T> List<T> memoize(String key, Query<T> query) {
+        long version = datasource.getDataVersion();
+        if (version < 0) {
+            // Can't tell if the database changed, so don't trust (or fill) the cache
+            synchronized (this) {
+                misses++;
+            }
+            return query.run();
+        }
+
+        synchronized (this) {
+            // Versions only go up: an older one means another caller moved the cache on while this one was
+            // checking, so that caller's results are newer and this one doesn't touch the cache
+            if (version > cachedVersion) {
+                cache.clear();
+                cachedVersion = version;
+            }
+            List<T> result = version == cachedVersion ? (List<T>) cache.get(key) : null;
+            if (result != null) {
+                hits++;
+                return result;
+            }
+            misses++;
+        }
+
+        List<T> result = Collections.unmodifiableList(query.run()); // a failed query throws, so it's never cached
+        synchronized (this) {
+            // Only keep it if the cache still holds results of the version the query ran at
+            if (version == cachedVersion) {
+                cache.put(key, result);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,152 @@
+package com.pbe.model;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// *********************
+// Normalized name index
+// *********************
+// In-memory lookup from a normalized artist name or song title to the _id(s) in the database.
+// A name is normalized by:
+// - stripping accents (an o with umlaut becomes a plain o, so "Motorhead" also finds its umlaut spelling)
+// - folding case ("PINK floyd" -> "pink floyd")
+// - trimming and collapsing whitespace ("  Pink   Floyd " -> "pink floyd")
+// This way "pink floyd", "Pink Floyd" and "PINK  FLOYD" all resolve to the same artist _id,
+// without the database having to scan for case variants.
+//
+// Several rows can share the same normalized name (e.g. songs with the same title on different albums),
+// so every name maps to a sorted array of ids.
+// The arrays are never modified in place but replaced, so readers don't need any locking.
+// Building an index from a whole table goes through a Builder: adding the ids one by one would copy the
+// array on every add, which is quadratic for a common title (thousands of songs are called "Love").
+public class NameIndex {
+
+    private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final int[] NO_IDS = new int[0];
+
+    private final Map<String, int[]> artistIds = new ConcurrentHashMap<>();
+    private final Map<String, int[]> songIds = new ConcurrentHashMap<>();
+
+    // ******
+    // Normalize a name: accent-stripped, case-folded and whitespace-collapsed
+    // ******
+    public static String normalize(String name) {
+        if (name == null) {
+            return "";
+        }
+        String stripped = ACCENTS.matcher(Normalizer.normalize(name, Normalizer.Form.NFD)).replaceAll("");
+        return WHITESPACE.matcher(stripped.trim()).replaceAll(" ").toLowerCase(Locale.ROOT);
+    }
+
+    public void addArtist(int id, String name) {
+        add(artistIds, normalize(name), id);
+    }
+
+    public void addSong(int id, String title) {
+        add(songIds, normalize(title), id);
+    }
+
+    // ******
+    // Ids of all artists matching the name (empty array if there are none)
+    // ******
+    public int[] artistIds(String name) {
+        return artistIds.getOrDefault(normalize(name), NO_IDS);
+    }
+
+    // ******
+    // Ids of all songs matching the title (empty array if there are none)
+    // ******
+    public int[] songIds(String title) {
+        return songIds.getOrDefault(normalize(title), NO_IDS);
+    }
+
+    public int artistCount() {
+        return artistIds.size();
+    }
+
+    public int songCount() {
+        return songIds.size();
+    }
+
+    // Add a single id, e.g. for a song that was just inserted
+    // The array is kept sorted, so finding out whether the id is already there is a binary search
+    private static void add(Map<String, int[]> index, String key, int id) {
+        index.compute(key, (k, ids) -> {
+            if (ids == null) {
+                return new int[]{id};
+            }
+            int position = Arrays.binarySearch(ids, id);
+            if (position >= 0) {
+                return ids;
+            }
+            int insertAt = -position - 1;
+            int[] copy = new int[ids.length + 1];
+            System.arraycopy(ids, 0, copy, 0, insertAt);
+            copy[insertAt] = id;
+            System.arraycopy(ids, insertAt, copy, insertAt + 1, ids.length - insertAt);
+            return copy;
+        });
+    }
+
+    // ******
+    // Builds an index from all rows of the artists and songs tables
+    // The ids are collected in growable lists first, and only sorted and deduplicated once, in build()
+    // ******
+    public static class Builder {
+
+        private final Map<String, IdList> artistIds = new HashMap<>();
+        private final Map<String, IdList> songIds = new HashMap<>();
+
+        public void addArtist(int id, String name) {
+            artistIds.computeIfAbsent(normalize(name), k -> new IdList()).add(id);
+        }
+
+        public void addSong(int id, String title) {
+            songIds.computeIfAbsent(normalize(title), k -> new IdList()).add(id);
+        }
+
+        public NameIndex build() {
+            NameIndex index = new NameIndex();
+            for (Map.Entry<String, IdList> entry : artistIds.entrySet()) {
+                index.artistIds.put(entry.getKey(), entry.getValue().toSortedSet());
+            }
+            for (Map.Entry<String, IdList> entry : songIds.entrySet()) {
+                index.songIds.put(entry.getKey(), entry.getValue().toSortedSet());
+            }
+            return index;
+        }
+    }
+
+    // A growable list of ints, without boxing every id into an Integer
+    private static final class IdList {
+
+        private int[] ids = new int[1];
+        private int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        // The ids sorted, without duplicates
+        int[] toSortedSet() {
+            int[] sorted = Arrays.copyOf(ids, size);
+            Arrays.sort(sorted);
+            int unique = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (unique == 0 || sorted[unique - 1] != sorted[i]) {
+                    sorted[unique++] = sorted[i];
+                }
+            }
+            return unique == sorted.length ? sorted : Arrays.copyOf(sorted, unique);
+        }
+    }
+}
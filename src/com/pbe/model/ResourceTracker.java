@@ -0,0 +1,264 @@
+package com.pbe.model;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// *********************
+// JDBC resource leak detector
+// *********************
+// Every Connection, Statement and ResultSet holds on to resources in SQLite (e.g. a cursor for an open result set)
+// until its close() method is called. Forgetting to close one is a 'leak': under sustained load those add up.
+//
+// The tracker wraps a connection in a proxy (a generated class implementing the same interface,
+// passing every call on to the real object). The statements and result sets created through it are wrapped too.
+// For every open handle, the tracker remembers when and where (the stack trace) it was created,
+// and forgets it again when it's closed. So at any moment it knows:
+// - how many connections, statements and result sets are open (the live counts)
+// - which ones have been open for too long, and which code opened them
+//
+// A background check (started with start()) reports statements and result sets that are open longer than the
+// lifetime threshold. It only reports them: the check runs on its own thread, and a handle that's open that long
+// may well still be in use (e.g. a scan over millions of rows), so closing it from there isn't safe.
+// Connections, and the prepared statements the Datasource prepares when opening (marked with markLongLived()),
+// are meant to live as long as the Datasource, so they're counted but never reported as a leak by the check;
+// if they're still open when the tracker is shut down, they're reported then. Other prepared statements (e.g. the
+// ones the name lookups prepare per query) are checked like any statement.
+//
+// Closing a handle also closes the handles created from it (JDBC closes the result sets of a statement,
+// and the statements of a connection), so those are forgotten as well.
+public class ResourceTracker {
+
+    public static final long DEFAULT_LIFETIME_THRESHOLD_MILLIS = 30_000;
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 5_000;
+
+    public enum Type {CONNECTION, STATEMENT, PREPARED_STATEMENT, RESULT_SET}
+
+    // An open handle: the real JDBC object, and when and where it was opened
+    private static final class Handle {
+        private final Type type;
+        private final AutoCloseable target;
+        private final long openedAt = System.nanoTime();
+        private final Throwable allocationSite;
+        private final List<Handle> children = new ArrayList<>();
+        // Set by the checker thread or by a thread calling checkForLeaks() or shutdown(), whichever is first
+        private final AtomicBoolean reported = new AtomicBoolean();
+        // Meant to stay open as long as its connection (see markLongLived())
+        private volatile boolean longLived;
+
+        private Handle(Type type, AutoCloseable target, Throwable allocationSite) {
+            this.type = type;
+            this.target = target;
+            this.allocationSite = allocationSite;
+        }
+    }
+
+    private final Map<Handle, Boolean> openHandles = new ConcurrentHashMap<>();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong leaksReported = new AtomicLong();
+
+    private final long lifetimeThresholdNanos;
+    private ScheduledExecutorService checker;
+
+    public ResourceTracker() {
+        this(DEFAULT_LIFETIME_THRESHOLD_MILLIS);
+    }
+
+    public ResourceTracker(long lifetimeThresholdMillis) {
+        this.lifetimeThresholdNanos = TimeUnit.MILLISECONDS.toNanos(lifetimeThresholdMillis);
+    }
+
+    // ******
+    // Start the background check
+    // Not done by the constructor, so the checker thread never sees a tracker that isn't fully constructed
+    // ******
+    public synchronized ResourceTracker start() {
+        if (checker == null) {
+            checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "resource-leak-checker");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checker.scheduleWithFixedDelay(this::checkForLeaks, DEFAULT_CHECK_INTERVAL_MILLIS,
+                    DEFAULT_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    // ******
+    // Start tracking a connection (and everything created through it)
+    // Use the returned connection instead of the original one
+    // ******
+    public Connection track(Connection conn) {
+        return (Connection) wrap(Type.CONNECTION, conn, null, Connection.class);
+    }
+
+    // ******
+    // Mark a statement created through a tracked connection as meant to stay open as long as the connection,
+    // so the background check doesn't report it (see the class comment)
+    // ******
+    public void markLongLived(Statement statement) {
+        if (Proxy.isProxyClass(statement.getClass())
+                && Proxy.getInvocationHandler(statement) instanceof Tracking) {
+            ((Tracking) Proxy.getInvocationHandler(statement)).handle.longLived = true;
+        }
+    }
+
+    // ******
+    // Live counts
+    // ******
+    public int getOpenCount(Type type) {
+        int count = 0;
+        for (Handle handle : openHandles.keySet()) {
+            if (handle.type == type) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getOpenCount() {
+        return openHandles.size();
+    }
+
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    public long getLeaksReported() {
+        return leaksReported.get();
+    }
+
+    // ******
+    // Report statements and result sets that have been open for longer than the threshold
+    // Runs periodically in the background, but can also be called directly
+    // ******
+    public void checkForLeaks() {
+        long now = System.nanoTime();
+        for (Handle handle : openHandles.keySet()) {
+            if (handle.type == Type.CONNECTION || handle.longLived) {
+                continue;
+            }
+            if (now - handle.openedAt < lifetimeThresholdNanos) {
+                continue;
+            }
+            if (handle.reported.compareAndSet(false, true)) {
+                report(handle, now);
+            }
+        }
+    }
+
+    // ******
+    // Stop the background check, and report everything that is still open
+    // ******
+    public void shutdown() {
+        synchronized (this) {
+            if (checker != null) {
+                checker.shutdownNow();
+                checker = null;
+            }
+        }
+        long now = System.nanoTime();
+        for (Handle handle : openHandles.keySet()) {
+            if (handle.reported.compareAndSet(false, true)) {
+                report(handle, now);
+            }
+        }
+    }
+
+    private void report(Handle handle, long now) {
+        leaksReported.incrementAndGet();
+        System.out.format("Possible leak: %s open for %d ms, opened at:\n", handle.type,
+                TimeUnit.NANOSECONDS.toMillis(now - handle.openedAt));
+        handle.allocationSite.printStackTrace(System.out);
+    }
+
+    private Object wrap(Type type, AutoCloseable target, Handle parent, Class<?> iface) {
+        Handle handle = new Handle(type, target, new Throwable("Opened here"));
+        openHandles.put(handle, Boolean.TRUE);
+        opened.incrementAndGet();
+        if (parent != null) {
+            synchronized (parent.children) {
+                parent.children.add(handle);
+            }
+        }
+        return Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[]{iface}, new Tracking(handle));
+    }
+
+    // Forget a handle and everything created from it
+    private void forget(Handle handle) {
+        openHandles.remove(handle);
+        forgetChildren(handle);
+    }
+
+    private void forgetChildren(Handle handle) {
+        List<Handle> children;
+        synchronized (handle.children) {
+            children = new ArrayList<>(handle.children);
+            handle.children.clear();
+        }
+        for (Handle child : children) {
+            forget(child);
+        }
+    }
+
+    // ******
+    // Passes every call on to the real JDBC object
+    // Wraps the statements and result sets it returns, and forgets the handle when it's closed
+    // ******
+    private final class Tracking implements InvocationHandler {
+        private final Handle handle;
+
+        private Tracking(Handle handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result;
+            try {
+                result = method.invoke(handle.target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+
+            if (method.getName().equals("close")) {
+                forget(handle);
+                return result;
+            }
+            if (handle.type == Type.CONNECTION) {
+                if (result instanceof CallableStatement) {
+                    return wrap(Type.PREPARED_STATEMENT, (CallableStatement) result, handle, CallableStatement.class);
+                }
+                if (result instanceof PreparedStatement) {
+                    return wrap(Type.PREPARED_STATEMENT, (PreparedStatement) result, handle, PreparedStatement.class);
+                }
+                if (result instanceof Statement) {
+                    return wrap(Type.STATEMENT, (Statement) result, handle, Statement.class);
+                }
+            } else if (handle.type != Type.RESULT_SET && result instanceof ResultSet) {
+                // Executing a statement again closes its previous result set
+                if (!method.getName().equals("getGeneratedKeys")) {
+                    forgetChildren(handle);
+                }
+                return wrap(Type.RESULT_SET, (ResultSet) result, handle, ResultSet.class);
+            }
+            return result;
+        }
+    }
+}
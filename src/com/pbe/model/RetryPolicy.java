@@ -0,0 +1,95 @@
+package com.pbe.model;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+// *********************
+// Retry policy for busy / locked databases
+// *********************
+// SQLite allows one writer at a time. When another connection holds the lock, a statement fails with
+// SQLITE_BUSY (5), or SQLITE_LOCKED (6) for a conflict within the same shared cache.
+// The busy timeout (PRAGMA busy_timeout) makes SQLite itself wait for the lock for a while;
+// this policy decides what happens when that wait wasn't enough: try again after an exponential back-off.
+//
+// The back-off doubles (by 'multiplier') after every attempt, up to 'maxBackoffMillis'.
+// A random part ('jitter') is added, so connections that failed at the same moment don't all retry
+// at the same moment again.
+// Only reads and writes that are safe to repeat (e.g. a transaction that was rolled back) should be retried.
+public class RetryPolicy {
+
+    // SQLite result codes (the primary code is in the lowest 8 bits of the extended code)
+    public static final int SQLITE_BUSY = 5;
+    public static final int SQLITE_LOCKED = 6;
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 10;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 1000;
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+    public static final double DEFAULT_JITTER = 0.2;
+
+    // Fail on the first busy error
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 1.0, 0.0);
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double multiplier;
+    private final double jitter;
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS,
+                DEFAULT_MULTIPLIER, DEFAULT_JITTER);
+    }
+
+    // maxAttempts includes the first attempt, jitter is a fraction of the back-off (0.2 = up to 20% extra)
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis,
+                       double multiplier, double jitter) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    // ******
+    // Should the statement be tried again, after failing with this exception on the given attempt (1 = first)
+    // ******
+    public boolean shouldRetry(SQLException e, int attempt) {
+        return attempt < maxAttempts && isBusy(e);
+    }
+
+    // ******
+    // Time to wait before the next attempt, after the given attempt (1 = first) failed
+    // ******
+    public long backoffMillis(int attempt) {
+        double backoff = initialBackoffMillis * Math.pow(multiplier, attempt - 1);
+        backoff = Math.min(backoff, maxBackoffMillis);
+        backoff += backoff * jitter * ThreadLocalRandom.current().nextDouble();
+        return (long) backoff;
+    }
+
+    // ******
+    // Is this a 'database is busy / locked' error, that may succeed when tried again
+    // ******
+    public static boolean isBusy(SQLException e) {
+        int code = e.getErrorCode() & 0xff;
+        if (code == SQLITE_BUSY || code == SQLITE_LOCKED) {
+            return true;
+        }
+        // Not every driver version sets the error code, but the message always names the result code
+        String message = e.getMessage();
+        return message != null && (message.contains("SQLITE_BUSY") || message.contains("SQLITE_LOCKED"));
+    }
+}
@@ -0,0 +1,314 @@
+package com.pbe.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// *********************
+// Compact binary row encoding
+// *********************
+// Encodes lists of Artist, Album, Song, SongArtist (or plain strings, e.g. album names) into a small byte array.
+// Meant as the storage format of result caches and as a wire format: a cached List<SongArtist> as Java objects
+// costs an object header, fields and a separate String object (with its own array) per value,
+// which is many times the size of the data itself.
+//
+// Layout:
+//   version (1 byte), row type (1 byte), number of rows (varint)
+//   dictionary: number of strings (varint), then per string its UTF-8 length (varint) and bytes
+//   rows: the fields of each row, in the order of the row type:
+//     ARTIST:      id, name
+//     ALBUM:       id, name, artistId
+//     SONG:        id, track, title, albumId
+//     SONG_ARTIST: artistName, albumName, track
+//     STRING:      value
+//   Numbers are zig-zag varints (1 byte for values between -64 and 63, 2 bytes up to 8191, ...).
+//   Strings are varint references into the dictionary (0 = null, n = n-th dictionary entry),
+//   so a name that occurs in many rows (the artist of every track on an album) is stored only once.
+public class RowCodec {
+
+    public static final byte VERSION = 1;
+
+    public static final byte TYPE_ARTIST = 1;
+    public static final byte TYPE_ALBUM = 2;
+    public static final byte TYPE_SONG = 3;
+    public static final byte TYPE_SONG_ARTIST = 4;
+    public static final byte TYPE_STRING = 5;
+
+    private RowCodec() {
+    }
+
+    // ******
+    // Encode a list of rows (all of the same type)
+    // An empty list is encoded as a list of strings, and decodes to an empty list
+    // ******
+    public static byte[] encode(List<?> rows) {
+        byte type = rows.isEmpty() ? TYPE_STRING : typeOf(rows.get(0));
+
+        // Build the dictionary first, so it can be written before the rows that refer to it
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for (Object row : rows) {
+            if (typeOf(row) != type) {
+                throw new IllegalArgumentException("All rows must be of the same type, found " +
+                        row.getClass().getSimpleName() + " in a list of type " + type);
+            }
+            for (String value : stringsOf(row)) {
+                if (value != null && !dictionary.containsKey(value)) {
+                    dictionary.put(value, strings.size() + 1);
+                    strings.add(value);
+                }
+            }
+        }
+
+        Output out = new Output(16 + rows.size() * 6);
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeVarint(rows.size());
+        out.writeVarint(strings.size());
+        for (String value : strings) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeVarint(bytes.length);
+            out.writeBytes(bytes);
+        }
+
+        for (Object row : rows) {
+            switch (type) {
+                case TYPE_ARTIST:
+                    Artist artist = (Artist) row;
+                    out.writeVarint(artist.getId());
+                    out.writeVarint(ref(dictionary, artist.getName()));
+                    break;
+                case TYPE_ALBUM:
+                    Album album = (Album) row;
+                    out.writeVarint(album.getId());
+                    out.writeVarint(ref(dictionary, album.getName()));
+                    out.writeVarint(album.getArtistId());
+                    break;
+                case TYPE_SONG:
+                    Song song = (Song) row;
+                    out.writeVarint(song.getId());
+                    out.writeVarint(song.getTrack());
+                    out.writeVarint(ref(dictionary, song.getName()));
+                    out.writeVarint(song.getAlbumId());
+                    break;
+                case TYPE_SONG_ARTIST:
+                    SongArtist songArtist = (SongArtist) row;
+                    out.writeVarint(ref(dictionary, songArtist.getArtistName()));
+                    out.writeVarint(ref(dictionary, songArtist.getAlbumName()));
+                    out.writeVarint(songArtist.getTrack());
+                    break;
+                default:
+                    out.writeVarint(ref(dictionary, (String) row));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // ******
+    // Decode a byte array created by encode()
+    // The element type of the list depends on what was encoded
+    // Every length, count and string reference is checked against the data before it's used, so invalid bytes
+    // (e.g. from a damaged cache file) throw a RowCodecException
+    // ******
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> decode(byte[] data) {
+        Input in = new Input(data);
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new RowCodecException("Unsupported row encoding version " + version);
+        }
+        byte type = in.readByte();
+        if (type < TYPE_ARTIST || type > TYPE_STRING) {
+            throw new RowCodecException("Unknown row type " + type);
+        }
+        // Every row and every dictionary entry takes at least 1 byte, so neither count can exceed what's left
+        int count = in.readCount("rows");
+
+        String[] strings = new String[in.readCount("strings") + 1]; // index 0 stays null
+        for (int i = 1; i < strings.length; i++) {
+            int length = in.readVarint();
+            if (length < 0 || length > in.remaining()) {
+                throw new RowCodecException("String " + i + " of " + length + " bytes at position " + in.position +
+                        " runs past the end of the data (" + data.length + " bytes)");
+            }
+            strings[i] = new String(data, in.position, length, StandardCharsets.UTF_8);
+            in.position += length;
+        }
+
+        List<Object> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            switch (type) {
+                case TYPE_ARTIST:
+                    Artist artist = new Artist();
+                    artist.setId(in.readVarint());
+                    artist.setName(in.readString(strings));
+                    rows.add(artist);
+                    break;
+                case TYPE_ALBUM:
+                    Album album = new Album();
+                    album.setId(in.readVarint());
+                    album.setName(in.readString(strings));
+                    album.setArtistId(in.readVarint());
+                    rows.add(album);
+                    break;
+                case TYPE_SONG:
+                    Song song = new Song();
+                    song.setId(in.readVarint());
+                    song.setTrack(in.readVarint());
+                    song.setName(in.readString(strings));
+                    song.setAlbumId(in.readVarint());
+                    rows.add(song);
+                    break;
+                case TYPE_SONG_ARTIST:
+                    SongArtist songArtist = new SongArtist();
+                    songArtist.setArtistName(in.readString(strings));
+                    songArtist.setAlbumName(in.readString(strings));
+                    songArtist.setTrack(in.readVarint());
+                    rows.add(songArtist);
+                    break;
+                default:
+                    rows.add(in.readString(strings));
+            }
+        }
+        if (in.remaining() != 0) {
+            throw new RowCodecException(in.remaining() + " bytes left over after the last row");
+        }
+        return (List<T>) rows;
+    }
+
+    private static byte typeOf(Object row) {
+        if (row instanceof Artist) {
+            return TYPE_ARTIST;
+        } else if (row instanceof Album) {
+            return TYPE_ALBUM;
+        } else if (row instanceof Song) {
+            return TYPE_SONG;
+        } else if (row instanceof SongArtist) {
+            return TYPE_SONG_ARTIST;
+        } else if (row instanceof String) {
+            return TYPE_STRING;
+        }
+        throw new IllegalArgumentException("Can't encode rows of type " + row.getClass().getName());
+    }
+
+    private static List<String> stringsOf(Object row) {
+        if (row instanceof Artist) {
+            return Arrays.asList(((Artist) row).getName());
+        } else if (row instanceof Album) {
+            return Arrays.asList(((Album) row).getName());
+        } else if (row instanceof Song) {
+            return Arrays.asList(((Song) row).getName());
+        } else if (row instanceof SongArtist) {
+            return Arrays.asList(((SongArtist) row).getArtistName(), ((SongArtist) row).getAlbumName());
+        }
+        return Arrays.asList((String) row);
+    }
+
+    private static int ref(Map<String, Integer> dictionary, String value) {
+        return value == null ? 0 : dictionary.get(value);
+    }
+
+    // Growable byte buffer
+    private static final class Output {
+        private byte[] buffer;
+        private int position;
+
+        private Output(int initialSize) {
+            buffer = new byte[initialSize];
+        }
+
+        private void ensure(int extra) {
+            if (position + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+            }
+        }
+
+        private void writeByte(byte value) {
+            ensure(1);
+            buffer[position++] = value;
+        }
+
+        private void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        // Zig-zag encoding maps small negative numbers to small positive ones (0, -1, 1, -2 -> 0, 1, 2, 3),
+        // then 7 bits are written per byte, the high bit telling if more bytes follow
+        private void writeVarint(int value) {
+            ensure(5);
+            int zigzag = (value << 1) ^ (value >> 31);
+            while ((zigzag & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buffer[position++] = (byte) zigzag;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    private static final class Input {
+        private final byte[] data;
+        private int position;
+
+        private Input(byte[] data) {
+            this.data = data;
+        }
+
+        private int remaining() {
+            return data.length - position;
+        }
+
+        private byte readByte() {
+            if (position >= data.length) {
+                throw new RowCodecException("Data ends at position " + position + ", in the middle of a value");
+            }
+            return data[position++];
+        }
+
+        // An int takes at most 5 bytes (7 bits each); a longer varint can only come from invalid data
+        private int readVarint() {
+            int start = position;
+            int zigzag = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (shift > 28) {
+                    throw new RowCodecException("Varint at position " + start + " is longer than 5 bytes");
+                }
+                b = readByte();
+                zigzag |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        // A number of items that each take at least 1 byte of what's left
+        private int readCount(String what) {
+            int count = readVarint();
+            if (count < 0 || count > remaining()) {
+                throw new RowCodecException("Invalid number of " + what + ": " + count + ", with " + remaining() +
+                        " bytes left");
+            }
+            return count;
+        }
+
+        // A reference into the dictionary (0 is null)
+        private String readString(String[] strings) {
+            int start = position;
+            int ref = readVarint();
+            if (ref < 0 || ref >= strings.length) {
+                throw new RowCodecException("String reference " + ref + " at position " + start +
+                        " is outside the dictionary of " + (strings.length - 1) + " strings");
+            }
+            return strings[ref];
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.pbe.model;
+
+// *********************
+// Invalid row encoding
+// *********************
+// Thrown by RowCodec.decode() when the bytes aren't a valid encoding: truncated, a length or string reference
+// that points outside the data, an unknown version or row type, or bytes left over after the last row.
+// Cached bytes can come from a file (see TieredCache), so a damaged file ends up here instead of in an
+// ArrayIndexOutOfBoundsException or a huge allocation.
+// It's an IllegalArgumentException, like the other errors RowCodec throws for input it can't handle.
+public class RowCodecException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RowCodecException(String message) {
+        super(message);
+    }
+}
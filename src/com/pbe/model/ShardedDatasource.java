@@ -0,0 +1,328 @@
+package com.pbe.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// *********************
+// Sharded catalog
+// *********************
+// Spreads the catalog over several SQLite database files ('shards'), each with its own connection.
+// SQLite allows only one writer per database file, so by splitting the data over N files,
+// N writers can insert at the same time.
+//
+// Artists are hash-partitioned on their normalized name (see NameIndex.normalize()): an artist and all of its
+// albums and songs always live in the same shard, and so do the spelling variants the name index treats as
+// the same artist. This means:
+// - Lookups by artist name only have to go to a single shard
+// - Lookups that aren't about a single artist (all artists, artist for a song) are sent to every shard in parallel
+//   ('scatter') and the sorted results of the shards are merged into one sorted list ('gather')
+//
+// Every shard numbers its rows from 1, so the same _id exists in several shards. The artist ids returned
+// by queryArtists() are therefore global ids, with the shard encoded in them (see globalId()).
+// Global ids are ints like the local ones, so a shard can hold up to Integer.MAX_VALUE / shard count artists
+// (see getMaxLocalId()).
+//
+// A shard is a single Datasource, with one connection and shared prepared statements, so only one query or
+// insert runs on a shard at a time (they synchronize on the shard). Different shards run in parallel.
+//
+// The shard files are named music-shard-0.db, music-shard-1.db, etc.
+public class ShardedDatasource {
+
+    public static final String SHARD_NAME_PREFIX = "music-shard-";
+    public static final String SHARD_NAME_SUFFIX = ".db";
+
+    private final List<Datasource> shards = new ArrayList<>();
+    private final int maxLocalId;
+    private ExecutorService executor;
+
+    // Use the default database location
+    public ShardedDatasource(int shardCount) {
+        this(Datasource.DB_PATH, shardCount);
+    }
+
+    public ShardedDatasource(String dbPath, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1, got " + shardCount);
+        }
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new Datasource("jdbc:sqlite:" + dbPath + SHARD_NAME_PREFIX + i + SHARD_NAME_SUFFIX));
+        }
+        maxLocalId = (Integer.MAX_VALUE - (shardCount - 1)) / shardCount;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    // ******
+    // Open all shards, at the same time
+    // Creates the tables and view on shards that are still empty, before their statements are prepared
+    // ******
+    public boolean open() {
+        List<CompletableFuture<Boolean>> opened = new ArrayList<>(shards.size());
+        for (Datasource shard : shards) {
+            opened.add(CompletableFuture.supplyAsync(() -> shard.open(true)));
+        }
+        for (CompletableFuture<Boolean> shardOpened : opened) {
+            if (!shardOpened.join()) {
+                close();
+                return false;
+            }
+        }
+        // One thread per shard, so all shards can be queried at the same time
+        executor = Executors.newFixedThreadPool(shards.size());
+        return true;
+    }
+
+    // ******
+    // Close all shards
+    // ******
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        for (Datasource shard : shards) {
+            shard.close();
+        }
+    }
+
+    // ******
+    // Find the shard an artist belongs to
+    // Normalized the same way as the name index of the shards, so every variant of a name the index
+    // resolves to the same artist (case, accents, spacing) ends up in the same shard
+    // ******
+    public int shardFor(String artistName) {
+        return Math.floorMod(NameIndex.normalize(artistName).hashCode(), shards.size());
+    }
+
+    // ******
+    // Global id of a row: the _id within its shard, with the shard number encoded in it
+    // The local id can't be above getMaxLocalId(), or the global id wouldn't fit in an int
+    // ******
+    public int globalId(int shard, int localId) {
+        return localId * shards.size() + shard;
+    }
+
+    // Highest _id a shard row can have and still get a global id
+    public int getMaxLocalId() {
+        return maxLocalId;
+    }
+
+    public int shardOfId(int globalId) {
+        return globalId % shards.size();
+    }
+
+    public int localId(int globalId) {
+        return globalId / shards.size();
+    }
+
+    // ******
+    // Query all artists of all shards
+    // The ids of the returned artists are global ids (see globalId())
+    // ******
+    public List<Artist> queryArtists(int sortOrder) {
+        List<List<Artist>> results = scatter(shard -> shard.queryArtists(sortOrder));
+        // Check all ids first, so nothing is returned with only some of its ids rewritten
+        for (int i = 0; i < results.size(); i++) {
+            for (Artist artist : results.get(i)) {
+                if (artist.getId() > maxLocalId) {
+                    throw new DatasourceException("Artist _id " + artist.getId() + " of shard " + i +
+                            " is above " + maxLocalId + ", the highest that fits in a global id", null);
+                }
+            }
+        }
+        for (int i = 0; i < results.size(); i++) {
+            for (Artist artist : results.get(i)) {
+                artist.setId(globalId(i, artist.getId()));
+            }
+        }
+        // Same ordering as "ORDER BY name COLLATE NOCASE"
+        Comparator<Artist> comparator = Comparator.comparing(Artist::getName, NOCASE);
+        return gather(results, sortOrder, direction(comparator, sortOrder));
+    }
+
+    // ******
+    // Query albums by artist
+    // An artist only lives in a single shard, so there's no need to go to the other shards
+    // ******
+    public List<String> queryAlbumsForArtist(String artistName, int sortOrder) {
+        Datasource shard = shards.get(shardFor(artistName));
+        synchronized (shard) {
+            return shard.queryAlbumsForArtist(artistName, sortOrder);
+        }
+    }
+
+    // ******
+    // Query artists for a song
+    // Songs with the same title can be recorded by artists in different shards, so all shards are queried
+    // ******
+    public List<SongArtist> queryArtistForSong(String songName, int sortOrder) {
+        List<List<SongArtist>> results = scatter(shard -> shard.queryArtistForSong(songName, sortOrder));
+        // Same ordering as Datasource.QUERY_ARTIST_FOR_SONG_SORT:
+        // "ORDER BY artists.name, albums.name COLLATE NOCASE ASC/DESC"
+        // Note that in SQL the collation and direction only apply to the album name, not to the artist name
+        Comparator<SongArtist> albumOrder = Comparator.comparing(SongArtist::getAlbumName, NOCASE);
+        Comparator<SongArtist> comparator = Comparator.comparing(SongArtist::getArtistName, BINARY)
+                .thenComparing(direction(albumOrder, sortOrder));
+        return gather(results, sortOrder, comparator);
+    }
+
+    // ******
+    // Query song info via the view of every shard
+    // The view is sorted on artist name, album name and track (see Datasource.CREATE_ARTIST_FOR_SONG_VIEW),
+    // so the shard results are merged in that order
+    // ******
+    public List<SongArtist> querySongInfoView(String title) {
+        List<List<SongArtist>> results = scatter(shard -> shard.querySongInfoView(title));
+        Comparator<SongArtist> comparator = Comparator.comparing(SongArtist::getArtistName, BINARY)
+                .thenComparing(SongArtist::getAlbumName, BINARY)
+                .thenComparingInt(SongArtist::getTrack);
+        return gather(results, Datasource.ORDER_BY_ASC, comparator);
+    }
+
+    // ******
+    // Insert a song into the shard of its artist
+    // Inserts for artists in different shards don't block each other. Inserts into the same shard take turns:
+    // they share the shard's connection and prepared statements, and switch its auto-commit off and on.
+    // ******
+    public boolean insertSong(String title, String artist, String album, int track) {
+        Datasource shard = shards.get(shardFor(artist));
+        synchronized (shard) {
+            return shard.insertSong(title, artist, album, track);
+        }
+    }
+
+    public int getCount(String table) {
+        List<Integer> counts;
+        try {
+            counts = scatter(shard -> shard.getCount(table));
+        } catch (DatasourceException e) {
+            return -1;
+        }
+        int total = 0;
+        for (int count : counts) {
+            if (count < 0) {
+                return -1;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    private interface ShardQuery<T> {
+        T query(Datasource shard);
+    }
+
+    // ******
+    // Run a query on all shards in parallel and collect the results per shard
+    // Queries of other callers on the same shard wait their turn (see the class comment)
+    // Throws a DatasourceException if any of the shards failed, just like the Datasource query methods do
+    // ******
+    private <T> List<T> scatter(ShardQuery<T> query) {
+        List<Future<T>> futures = new ArrayList<>(shards.size());
+        for (Datasource shard : shards) {
+            Callable<T> task = () -> {
+                synchronized (shard) {
+                    return query.query(shard);
+                }
+            };
+            futures.add(executor.submit(task));
+        }
+
+        List<T> results = new ArrayList<>(shards.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatasourceException("Shard query interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DatasourceException) {
+                throw (DatasourceException) e.getCause(); // keep the type, e.g. DatabaseBusyException
+            }
+            throw new DatasourceException("Shard query failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // SQLite's NOCASE collation: only the ASCII letters A-Z are folded to lower case.
+    // String.CASE_INSENSITIVE_ORDER folds all of Unicode, so it would sort e.g. accented names differently.
+    static final Comparator<String> NOCASE = (a, b) -> compareSql(a, b, true);
+
+    // SQLite's default BINARY collation: compares the UTF-8 bytes, which is the same as comparing code points
+    static final Comparator<String> BINARY = (a, b) -> compareSql(a, b, false);
+
+    private static int compareSql(String a, String b, boolean foldAscii) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+            if (foldAscii) {
+                ca = (ca >= 'A' && ca <= 'Z') ? ca + ('a' - 'A') : ca;
+                cb = (cb >= 'A' && cb <= 'Z') ? cb + ('a' - 'A') : cb;
+            }
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+        }
+        // The shorter string (the prefix) comes first
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    private static <T> Comparator<T> direction(Comparator<T> comparator, int sortOrder) {
+        return sortOrder == Datasource.ORDER_BY_DESC ? comparator.reversed() : comparator;
+    }
+
+    // ******
+    // Merge the (already sorted) results of the shards into a single sorted list
+    // Uses a k-way merge: a priority queue holds the head of each shard list,
+    // so every element is compared against at most log(shardCount) others
+    // Unmodifiable, like the lists the Datasource queries return
+    // ******
+    private static <T> List<T> gather(List<List<T>> shardResults, int sortOrder, Comparator<T> comparator) {
+        int size = 0;
+        for (List<T> shardResult : shardResults) {
+            size += shardResult.size();
+        }
+        List<T> merged = new ArrayList<>(size);
+
+        if (sortOrder == Datasource.ORDER_BY_NONE || comparator == null) {
+            for (List<T> shardResult : shardResults) {
+                merged.addAll(shardResult);
+            }
+            return Collections.unmodifiableList(merged);
+        }
+
+        // Each queue entry is {shard, position in that shard's list}
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, shardResults.size()),
+                (a, b) -> comparator.compare(shardResults.get(a[0]).get(a[1]), shardResults.get(b[0]).get(b[1])));
+        for (int i = 0; i < shardResults.size(); i++) {
+            if (!shardResults.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        while (!heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<T> shardResult = shardResults.get(head[0]);
+            merged.add(shardResult.get(head[1]));
+            if (head[1] + 1 < shardResult.size()) {
+                heads.add(new int[]{head[0], head[1] + 1});
+            }
+        }
+        return Collections.unmodifiableList(merged);
+    }
+}
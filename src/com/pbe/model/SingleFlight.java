@@ -0,0 +1,76 @@
+package com.pbe.model;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// *********************
+// Single-flight request coalescing
+// *********************
+// When many threads ask for the same thing at the same time (e.g. the info of a trending song),
+// only the first one actually runs the query. The others wait for that query to finish and get the same result.
+// As soon as the query is done, the key is free again: a call that arrives later runs a new query,
+// so this is not a cache and never returns stale data.
+//
+// If the query throws an exception, every waiting caller gets that exception.
+public class SingleFlight<T> {
+
+    private final Map<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder executions = new LongAdder();
+
+    // ******
+    // Run the loader for the key, or wait for the loader that's already running for the same key
+    // ******
+    public T execute(String key, Supplier<T> loader) {
+        calls.increment();
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        CompletableFuture<T> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        executions.increment();
+        try {
+            T result = loader.get();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    // Total number of calls
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    // Number of calls that actually ran the loader
+    public long getExecutions() {
+        return executions.sum();
+    }
+
+    // Number of calls that shared the result of another call
+    public long getCollapsed() {
+        return calls.sum() - executions.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+}
@@ -1,6 +1,10 @@
 package com.pbe.model;
 
-public class Song {
+import java.io.Serializable;
+
+public class Song implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private int id;
     private int track;
@@ -1,6 +1,10 @@
 package com.pbe.model;
 
-public class SongArtist {
+import java.io.Serializable;
+
+public class SongArtist implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private String artistName;
     private String albumName;
@@ -0,0 +1,55 @@
+package com.pbe.model;
+
+import java.io.Serializable;
+
+// A song with the number of times it was played in a time window (see ListeningEventStore)
+public class SongPlays implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int songId;
+    private String title;
+    private String artistName;
+    private String albumName;
+    private long plays;
+
+    public int getSongId() {
+        return songId;
+    }
+
+    public void setSongId(int songId) {
+        this.songId = songId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public String getArtistName() {
+        return artistName;
+    }
+
+    public void setArtistName(String artistName) {
+        this.artistName = artistName;
+    }
+
+    public String getAlbumName() {
+        return albumName;
+    }
+
+    public void setAlbumName(String albumName) {
+        this.albumName = albumName;
+    }
+
+    public long getPlays() {
+        return plays;
+    }
+
+    public void setPlays(long plays) {
+        this.plays = plays;
+    }
+}
@@ -0,0 +1,66 @@
+package com.pbe.model;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// *********************
+// Startup timings
+// *********************
+// Records when each step of opening a Datasource started and how long it took, on which thread.
+// The steps of Datasource.openAsync() overlap, so both are printed: the start shows what ran in parallel,
+// the duration shows what was expensive.
+public class StartupTimer {
+
+    private static final class Phase {
+        private final String name;
+        private final String thread;
+        private final long startNanos;
+        private final long durationNanos;
+
+        private Phase(String name, String thread, long startNanos, long durationNanos) {
+            this.name = name;
+            this.thread = thread;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+        }
+    }
+
+    private final long start = System.nanoTime();
+    private final Queue<Phase> phases = new ConcurrentLinkedQueue<>();
+
+    // ******
+    // Record a step that started at phaseStart (a System.nanoTime() value) and ended just now
+    // ******
+    public void record(String phase, long phaseStart) {
+        long now = System.nanoTime();
+        phases.add(new Phase(phase, Thread.currentThread().getName(), phaseStart - start, now - phaseStart));
+    }
+
+    // Milliseconds since the timer was created
+    public double getElapsedMillis() {
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    // Milliseconds from the start until the end of the given step, or -1 if it wasn't recorded (yet)
+    public double getMillisUntil(String phase) {
+        for (Phase recorded : phases) {
+            if (recorded.name.equals(phase)) {
+                return (recorded.startNanos + recorded.durationNanos) / 1e6;
+            }
+        }
+        return -1;
+    }
+
+    public void printSummary() {
+        List<Phase> sorted = new ArrayList<>(phases);
+        sorted.sort(Comparator.comparingLong(phase -> phase.startNanos));
+        System.out.println("   start   duration  step");
+        for (Phase phase : sorted) {
+            System.out.format("%6.1f ms %7.1f ms  %s [%s]\n",
+                    phase.startNanos / 1e6, phase.durationNanos / 1e6, phase.name, phase.thread);
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package com.pbe.model;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// *********************
+// Two-tier cache
+// *********************
+// Caches encoded query results (see RowCodec) in two tiers:
+// 1. Hot tier: on the heap, for the most frequently used entries. Limited to a number of bytes.
+// 2. Cold tier: a memory-mapped file on local disk. The operating system keeps the pages that are in use
+//    in memory and writes the rest to disk, so it can be much larger than the heap tier.
+//
+// Every entry counts how often it's used:
+// - When the hot tier is full, a rarely used entry is demoted to the cold tier. Finding the least frequently
+//   used one would mean looking at every hot entry on every put, so a few random entries are sampled instead,
+//   and the least used of those is demoted (an approximate LFU, like Redis does).
+// - A cold entry that gets used often enough is promoted back to the hot tier
+// The counts are halved every so often, so entries that were popular a long time ago don't stay hot forever.
+//
+// The cold tier file survives a restart: close() moves the hot entries to it, and opening the cache
+// reads the keys back in. So after a deploy the cache starts warm instead of empty.
+// The entries are only valid for the data they were read from, so the file header holds the data version
+// passed to close(). Opening the cache with a different version (the database was changed while the cache was
+// closed) discards the file. While the cache is open the header says 'unknown', so after a crash it's discarded too.
+//
+// clear() moves the cache on to a new generation. A caller that reads getGeneration() before running a query,
+// and stores the result with put(key, value, generation), can't put a result from before a clear() back in.
+//
+// File layout: a header [magic][data version], then a sequence of records
+// [key length][value length][key bytes][value bytes].
+// A value length of -1 marks a removed key. A key length of 0 marks the end of the records: every append writes
+// one after its record, so whatever comes after it (e.g. records from before a clear()) is never read.
+// When the file is full, the live records are compacted to the front of the file. Only if that frees at least
+// a quarter of the file though: otherwise the next writes would compact again straight away, and the entry that
+// doesn't fit is dropped instead.
+public class TieredCache {
+
+    public static final long DEFAULT_HOT_BYTES = 16L * 1024 * 1024;
+    public static final int DEFAULT_COLD_FILE_BYTES = 256 * 1024 * 1024;
+    public static final int DEFAULT_PROMOTE_AFTER = 3;
+
+    // Halve all usage counts after this many lookups
+    private static final int AGING_INTERVAL = 10_000;
+
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int REMOVED = -1;
+
+    // Number of hot entries to look at for a demotion
+    private static final int DEMOTION_SAMPLES = 5;
+
+    // Compact the cold tier file only if that frees at least this part of it
+    private static final int COMPACT_MIN_FREE_DIVISOR = 4;
+
+    // File header: a marker for the file format, and the data version the entries belong to
+    private static final int MAGIC = 0x54434331; // "TCC1"
+    private static final int FILE_HEADER_BYTES = 12;
+    public static final long UNKNOWN_VERSION = -1;
+
+    private static final class HotEntry {
+        private final byte[] value;
+        private int frequency;
+        private int slot; // position in hotKeys
+
+        private HotEntry(byte[] value, int frequency) {
+            this.value = value;
+            this.frequency = frequency;
+        }
+    }
+
+    // Where a cold entry's value is in the file
+    private static final class ColdEntry {
+        private final int valueOffset;
+        private final int valueLength;
+        private final int recordSize;
+        private int frequency;
+
+        private ColdEntry(int valueOffset, int valueLength, int recordSize) {
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+            this.recordSize = recordSize;
+        }
+    }
+
+    private final Map<String, HotEntry> hot = new HashMap<>();
+    // The hot keys in no particular order, to pick random ones for a demotion
+    private final List<String> hotKeys = new ArrayList<>();
+    private final Random random = new Random();
+    private final Map<String, ColdEntry> cold = new HashMap<>();
+    private final long maxHotBytes;
+    private final int promoteAfter;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private int writePosition;
+    // Bytes of the records of the live cold entries; the rest up to writePosition is freed by compacting
+    private long liveColdBytes;
+    // A removal that didn't fit in the file, so the file has to be compacted before it's closed
+    private boolean removalsPending;
+
+    private long hotBytes;
+    private int lookupsSinceAging;
+    private long generation;
+
+    private long hotHits;
+    private long coldHits;
+    private long misses;
+    private long promotions;
+    private long demotions;
+
+    // The cold tier file is only reused if it was closed with the same data version (see the class comment)
+    public TieredCache(String coldFile, long dataVersion) throws IOException {
+        this(coldFile, dataVersion, DEFAULT_HOT_BYTES, DEFAULT_COLD_FILE_BYTES, DEFAULT_PROMOTE_AFTER);
+    }
+
+    public TieredCache(String coldFile, long dataVersion, long maxHotBytes, int coldFileBytes, int promoteAfter)
+            throws IOException {
+        this.maxHotBytes = maxHotBytes;
+        this.promoteAfter = promoteAfter;
+        this.file = new RandomAccessFile(coldFile, "rw");
+
+        boolean valid = dataVersion != UNKNOWN_VERSION && file.length() >= FILE_HEADER_BYTES
+                && file.readInt() == MAGIC && file.readLong() == dataVersion;
+        if (!valid) {
+            file.setLength(0); // the mapping below extends it again, with zeros: an empty cache
+        }
+
+        this.channel = file.getChannel();
+        this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, coldFileBytes);
+        writeFileHeader(UNKNOWN_VERSION);
+        if (valid) {
+            loadColdIndex();
+        } else {
+            writePosition = FILE_HEADER_BYTES;
+        }
+        if (writePosition + RECORD_HEADER_BYTES <= mapped.capacity()) {
+            mapped.putInt(writePosition, 0); // end marker
+        }
+    }
+
+    // ******
+    // Look up a value, or null if it isn't cached
+    // ******
+    public synchronized byte[] get(String key) {
+        age();
+
+        HotEntry hotEntry = hot.get(key);
+        if (hotEntry != null) {
+            hotEntry.frequency++;
+            hotHits++;
+            return hotEntry.value;
+        }
+
+        ColdEntry coldEntry = cold.get(key);
+        if (coldEntry == null) {
+            misses++;
+            return null;
+        }
+        coldHits++;
+        coldEntry.frequency++;
+        byte[] value = new byte[coldEntry.valueLength];
+        mapped.get(coldEntry.valueOffset, value);
+
+        if (coldEntry.frequency >= promoteAfter) {
+            removeCold(key);
+            putHot(key, value, coldEntry.frequency);
+            promotions++;
+        }
+        return value;
+    }
+
+    // ******
+    // Add or replace a value
+    // New entries start in the hot tier
+    // ******
+    public synchronized void put(String key, byte[] value) {
+        removeCold(key);
+        putHot(key, value, 1);
+    }
+
+    // ******
+    // Add or replace a value, unless the cache was cleared since the caller read the generation
+    // Returns false if the value was dropped
+    // ******
+    public synchronized boolean put(String key, byte[] value, long generation) {
+        if (generation != this.generation) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    // ******
+    // Changes on every clear(), see put(key, value, generation)
+    // ******
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized void remove(String key) {
+        removeHot(key);
+        removeCold(key);
+    }
+
+    // ******
+    // Remove all entries from both tiers
+    // The records in the file are simply written over: the end marker at the start hides them
+    // ******
+    public synchronized void clear() {
+        generation++;
+        hot.clear();
+        hotKeys.clear();
+        hotBytes = 0;
+        cold.clear();
+        liveColdBytes = 0;
+        removalsPending = false;
+        writePosition = FILE_HEADER_BYTES;
+        mapped.putInt(writePosition, 0);
+    }
+
+    // ******
+    // Move the hot entries to disk and close the file, so they're available again after a restart
+    // dataVersion is the version of the data the entries were read from; the next open has to pass the same one
+    // ******
+    public synchronized void close(long dataVersion) throws IOException {
+        if (removalsPending) {
+            compact(); // the removed keys mustn't come back when the file is opened again
+        }
+        for (Map.Entry<String, HotEntry> entry : hot.entrySet()) {
+            writeCold(entry.getKey(), entry.getValue().value, entry.getValue().frequency);
+        }
+        hot.clear();
+        hotKeys.clear();
+        hotBytes = 0;
+        writeFileHeader(dataVersion);
+        mapped.force();
+        channel.close();
+        file.close();
+    }
+
+    // Close without a data version: the entries are discarded when the cache is opened again
+    public synchronized void close() throws IOException {
+        close(UNKNOWN_VERSION);
+    }
+
+    public synchronized int getHotSize() {
+        return hot.size();
+    }
+
+    public synchronized int getColdSize() {
+        return cold.size();
+    }
+
+    public synchronized void printStats() {
+        System.out.format("Cache: %d hot (%d KB), %d cold; hits %d hot, %d cold, %d misses; %d promoted, %d demoted\n",
+                hot.size(), hotBytes / 1024, cold.size(), hotHits, coldHits, misses, promotions, demotions);
+    }
+
+    private void putHot(String key, byte[] value, int frequency) {
+        HotEntry entry = new HotEntry(value, frequency);
+        HotEntry previous = hot.put(key, entry);
+        if (previous != null) {
+            hotBytes -= entrySize(key, previous.value);
+            entry.slot = previous.slot;
+        } else {
+            entry.slot = hotKeys.size();
+            hotKeys.add(key);
+        }
+        hotBytes += entrySize(key, value);
+
+        while (hotBytes > maxHotBytes && hot.size() > 1) {
+            demoteLeastFrequent(key);
+        }
+    }
+
+    private HotEntry removeHot(String key) {
+        HotEntry removed = hot.remove(key);
+        if (removed == null) {
+            return null;
+        }
+        hotBytes -= entrySize(key, removed.value);
+        // Move the last key into the freed slot, so removing doesn't shift the list
+        String last = hotKeys.remove(hotKeys.size() - 1);
+        if (removed.slot < hotKeys.size()) {
+            hotKeys.set(removed.slot, last);
+            hot.get(last).slot = removed.slot;
+        }
+        return removed;
+    }
+
+    // ******
+    // Move a rarely used hot entry to the cold tier (never the entry that was just added)
+    // The least frequently used of a few random entries, see the class comment
+    // ******
+    private void demoteLeastFrequent(String keep) {
+        String victim = null;
+        int lowest = Integer.MAX_VALUE;
+        for (int i = 0; i < DEMOTION_SAMPLES; i++) {
+            String key = hotKeys.get(random.nextInt(hotKeys.size()));
+            int frequency = hot.get(key).frequency;
+            if (frequency < lowest && !key.equals(keep)) {
+                lowest = frequency;
+                victim = key;
+            }
+        }
+        if (victim == null) {
+            // Only sampled the kept entry (a very small hot tier): take any other one
+            victim = hotKeys.get(0).equals(keep) ? hotKeys.get(1) : hotKeys.get(0);
+        }
+        HotEntry entry = removeHot(victim);
+        // Start the count over, so it has to prove itself again before being promoted
+        writeCold(victim, entry.value, 0);
+        demotions++;
+    }
+
+    private static long entrySize(String key, byte[] value) {
+        return key.length() * 2L + value.length + 64; // rough object overhead
+    }
+
+    private void age() {
+        if (++lookupsSinceAging < AGING_INTERVAL) {
+            return;
+        }
+        lookupsSinceAging = 0;
+        for (HotEntry entry : hot.values()) {
+            entry.frequency /= 2;
+        }
+        for (ColdEntry entry : cold.values()) {
+            entry.frequency /= 2;
+        }
+    }
+
+    // ******
+    // Cold tier file handling
+    // ******
+    private void writeFileHeader(long dataVersion) {
+        mapped.putInt(0, MAGIC);
+        mapped.putLong(4, dataVersion);
+    }
+
+    private void writeCold(String key, byte[] value, int frequency) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER_BYTES + keyBytes.length + value.length;
+        if (!hasRoom(recordSize)) {
+            if (worthCompacting()) {
+                compact();
+            }
+            if (!hasRoom(recordSize)) {
+                return; // doesn't fit: drop it
+            }
+        }
+        int valueOffset = appendRecord(keyBytes, value, value.length);
+        ColdEntry entry = new ColdEntry(valueOffset, value.length, recordSize);
+        entry.frequency = frequency;
+        putCold(key, entry);
+    }
+
+    private void putCold(String key, ColdEntry entry) {
+        ColdEntry previous = cold.put(key, entry);
+        if (previous != null) {
+            liveColdBytes -= previous.recordSize;
+        }
+        liveColdBytes += entry.recordSize;
+    }
+
+    private void removeCold(String key) {
+        ColdEntry removed = cold.remove(key);
+        if (removed == null) {
+            return;
+        }
+        liveColdBytes -= removed.recordSize;
+        // Record the removal, so the key doesn't come back after a restart
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (!hasRoom(RECORD_HEADER_BYTES + keyBytes.length)) {
+            if (worthCompacting()) {
+                compact(); // the compacted file no longer contains the key at all
+            } else {
+                removalsPending = true; // compacted when closing instead
+            }
+            return;
+        }
+        appendRecord(keyBytes, null, REMOVED);
+    }
+
+    // Only compact if that frees a good part of the file (see the class comment)
+    private boolean worthCompacting() {
+        long reclaimable = (writePosition - FILE_HEADER_BYTES) - liveColdBytes;
+        return reclaimable >= mapped.capacity() / COMPACT_MIN_FREE_DIVISOR;
+    }
+
+    // Keep room for the end marker (an empty record header)
+    private boolean hasRoom(int recordSize) {
+        return writePosition + recordSize + RECORD_HEADER_BYTES <= mapped.capacity();
+    }
+
+    // Returns the offset of the value
+    // Writes the end marker after the record, hasRoom() keeps room for it
+    private int appendRecord(byte[] keyBytes, byte[] value, int valueLength) {
+        int valueOffset = writePosition + RECORD_HEADER_BYTES + keyBytes.length;
+        int end = valueOffset + Math.max(0, valueLength);
+        mapped.putInt(end, 0);
+        if (value != null) {
+            mapped.put(valueOffset, value);
+        }
+        mapped.put(writePosition + RECORD_HEADER_BYTES, keyBytes);
+        mapped.putInt(writePosition + 4, valueLength);
+        mapped.putInt(writePosition, keyBytes.length);
+        writePosition = end;
+        return valueOffset;
+    }
+
+    // Rewrite only the live entries at the start of the file
+    private void compact() {
+        List<String> keys = new ArrayList<>(cold.keySet());
+        List<byte[]> values = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            ColdEntry entry = cold.get(key);
+            byte[] value = new byte[entry.valueLength];
+            mapped.get(entry.valueOffset, value);
+            values.add(value);
+        }
+
+        writePosition = FILE_HEADER_BYTES;
+        mapped.putInt(writePosition, 0);
+        Map<String, ColdEntry> compacted = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] keyBytes = keys.get(i).getBytes(StandardCharsets.UTF_8);
+            int valueOffset = appendRecord(keyBytes, values.get(i), values.get(i).length);
+            ColdEntry entry = new ColdEntry(valueOffset, values.get(i).length,
+                    RECORD_HEADER_BYTES + keyBytes.length + values.get(i).length);
+            entry.frequency = cold.get(keys.get(i)).frequency;
+            compacted.put(keys.get(i), entry);
+        }
+        cold.clear();
+        liveColdBytes = 0;
+        for (Map.Entry<String, ColdEntry> entry : compacted.entrySet()) {
+            putCold(entry.getKey(), entry.getValue());
+        }
+        removalsPending = false;
+    }
+
+    // Read the keys (and where their values are) from the file
+    private void loadColdIndex() {
+        int position = FILE_HEADER_BYTES;
+        while (position + RECORD_HEADER_BYTES <= mapped.capacity()) {
+            int keyLength = mapped.getInt(position);
+            if (keyLength <= 0) {
+                break; // end of the records
+            }
+            int valueLength = mapped.getInt(position + 4);
+            byte[] keyBytes = new byte[keyLength];
+            mapped.get(position + RECORD_HEADER_BYTES, keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            int valueOffset = position + RECORD_HEADER_BYTES + keyLength;
+            if (valueLength == REMOVED) {
+                ColdEntry removed = cold.remove(key);
+                if (removed != null) {
+                    liveColdBytes -= removed.recordSize;
+                }
+                position = valueOffset;
+            } else {
+                putCold(key, new ColdEntry(valueOffset, valueLength, RECORD_HEADER_BYTES + keyLength + valueLength));
+                position = valueOffset + valueLength;
+            }
+        }
+        writePosition = position;
+    }
+}
@@ -0,0 +1,361 @@
+package com.pbe.perf;
+
+import com.pbe.model.Datasource;
+import com.pbe.model.NameIndex;
+
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Random;
+
+// *********************
+// Synthetic catalog generator
+// *********************
+// Fills a database with generated artists, albums and songs, for benchmarks and soak tests.
+// The small music.db hides scaling problems, e.g. in the joins behind the artist_list view.
+//
+// The data is skewed like a real catalog:
+// - Albums per artist follow a Zipf distribution: most artists have 1 or 2 albums, a few have dozens
+// - Tracks per album are mostly around a typical album length, with some singles and long compilations
+// - Song titles are drawn from a limited pool, again Zipf distributed, so popular titles
+//   ("Intro", "Home", ...) are recorded by many different artists
+//
+// The generator is deterministic: the same seed and settings always produce exactly the same catalog.
+//
+// To be fast at tens of millions of rows:
+// - Rows get explicit ids, so no lookups of generated keys are needed. They continue after the highest id in
+//   each table, so a database that already has rows gets the catalog added to it
+// - Inserts are sent in batches (addBatch/executeBatch) and committed in large transactions
+// - Syncing to disk is switched off during the load. The journal stays on, so a failed transaction is still rolled back.
+//
+// The rows are written with plain JDBC, past any Datasource. A Datasource that's already open on the database
+// doesn't have them in its name index (it still finds them by their exact name), see Datasource.invalidateNameIndex().
+//
+// Usage: CatalogGenerator <database file> <number of artists> [seed]
+public class CatalogGenerator {
+
+    public static final long DEFAULT_SEED = 42;
+
+    private static final String[] WORDS = {
+            "love", "night", "heart", "fire", "dream", "home", "blue", "rain", "road", "time",
+            "light", "dance", "river", "gold", "city", "summer", "stone", "wild", "ghost", "angel",
+            "moon", "sun", "train", "song", "world", "black", "shadow", "window", "ocean", "star",
+            "devil", "paper", "silver", "thunder", "sweet", "lonely", "electric", "broken", "last", "first"
+    };
+
+    private long seed = DEFAULT_SEED;
+    private int artists = 10_000;
+    private int maxAlbumsPerArtist = 50;
+    private double albumSkew = 1.2;
+    private int typicalTracksPerAlbum = 10;
+    private int maxTracksPerAlbum = 40;
+    private int titlePoolSize = 200_000;
+    private double titleSkew = 1.0;
+    private int batchSize = 10_000;
+    private int rowsPerTransaction = 500_000;
+
+    // Totals of the last generated catalog
+    private long generatedAlbums;
+    private long generatedSongs;
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: CatalogGenerator <database file> <number of artists> [seed]");
+            System.exit(2);
+        }
+        CatalogGenerator generator = new CatalogGenerator();
+        generator.setArtists(Integer.parseInt(args[1]));
+        if (args.length > 2) {
+            generator.setSeed(Long.parseLong(args[2]));
+        }
+
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + args[0])) {
+            long start = System.nanoTime();
+            generator.generate(conn);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            System.out.format("Generated %d artists, %d albums, %d songs in %d ms\n",
+                    generator.getArtists(), generator.getGeneratedAlbums(), generator.getGeneratedSongs(), millis);
+        } catch (SQLException e) {
+            System.out.println("Generating catalog failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // ******
+    // Generate the catalog into the database
+    // Creates the tables and the artist_list view if they don't exist yet. If the tables already have rows, the
+    // generated ones get the ids after them: the same seed gives the same catalog, only its ids are shifted.
+    // ******
+    public void generate(Connection conn) throws SQLException {
+        Random random = new Random(seed);
+        ZipfDistribution albumsPerArtist = new ZipfDistribution(maxAlbumsPerArtist, albumSkew);
+        ZipfDistribution titles = new ZipfDistribution(titlePoolSize, titleSkew);
+        generatedAlbums = 0;
+        generatedSongs = 0;
+
+        try (Statement statement = conn.createStatement()) {
+            statement.execute(Datasource.CREATE_TABLE_ARTISTS);
+            statement.execute(Datasource.CREATE_TABLE_ALBUMS);
+            statement.execute(Datasource.CREATE_TABLE_SONGS);
+            statement.execute(Datasource.CREATE_ARTIST_FOR_SONG_VIEW);
+        }
+        long firstArtistId = maxId(conn, Datasource.TABLE_ARTISTS, Datasource.COLUMN_ARTIST_ID) + 1;
+        long firstAlbumId = maxId(conn, Datasource.TABLE_ALBUMS, Datasource.COLUMN_ALBUM_ID) + 1;
+        long firstSongId = maxId(conn, Datasource.TABLE_SONGS, Datasource.COLUMN_SONG_ID) + 1;
+        if (firstArtistId + artists - 1 > Integer.MAX_VALUE) {
+            // The datasource reads artist ids as int
+            throw new SQLException("Can't add " + artists + " artists after artist _id " + (firstArtistId - 1));
+        }
+        // Put the connection's sync setting back afterwards, whatever it was
+        int synchronous = readPragma(conn, "synchronous");
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("PRAGMA synchronous = OFF");
+        }
+
+        // The columns are named, so the inserts still work on a database that has more of them (after a migration)
+        // If the artists already have a normalized name column, it's filled in too
+        boolean normalizedNames = Datasource.hasColumn(conn, Datasource.TABLE_ARTISTS,
+                Datasource.COLUMN_ARTIST_NAME_NORMALIZED);
+        String artistColumns = Datasource.COLUMN_ARTIST_ID + ", " + Datasource.COLUMN_ARTIST_NAME +
+                (normalizedNames ? ", " + Datasource.COLUMN_ARTIST_NAME_NORMALIZED : "");
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement insertArtist = conn.prepareStatement(
+                "INSERT INTO " + Datasource.TABLE_ARTISTS + " (" + artistColumns + ") VALUES(?, ?" +
+                        (normalizedNames ? ", ?)" : ")"));
+             PreparedStatement insertAlbum = conn.prepareStatement(
+                     "INSERT INTO " + Datasource.TABLE_ALBUMS + " (" + Datasource.COLUMN_ALBUM_ID + ", " +
+                             Datasource.COLUMN_ALBUM_NAME + ", " + Datasource.COLUMN_ALBUM_ARTIST + ") VALUES(?, ?, ?)");
+             PreparedStatement insertSong = conn.prepareStatement(
+                     "INSERT INTO " + Datasource.TABLE_SONGS + " (" + Datasource.COLUMN_SONG_ID + ", " +
+                             Datasource.COLUMN_SONG_TRACK + ", " + Datasource.COLUMN_SONG_TITLE + ", " +
+                             Datasource.COLUMN_SONG_ALBUM + ") VALUES(?, ?, ?, ?)")) {
+
+            int pending = 0;
+            int uncommitted = 0;
+            for (int i = 0; i < artists; i++) {
+                int artistId = (int) (firstArtistId + i);
+                String name = artistName(random, artistId);
+                insertArtist.setInt(1, artistId);
+                insertArtist.setString(2, name);
+                if (normalizedNames) {
+                    insertArtist.setString(3, NameIndex.normalize(name));
+                }
+                insertArtist.addBatch();
+                pending++;
+
+                int albums = albumsPerArtist.sample(random);
+                for (int a = 0; a < albums; a++) {
+                    long albumId = firstAlbumId + generatedAlbums++;
+                    insertAlbum.setLong(1, albumId);
+                    insertAlbum.setString(2, titleFor(random.nextInt(WORDS.length * WORDS.length)) + " " + albumId);
+                    insertAlbum.setInt(3, artistId);
+                    insertAlbum.addBatch();
+                    pending++;
+
+                    int tracks = tracksPerAlbum(random);
+                    for (int track = 1; track <= tracks; track++) {
+                        insertSong.setLong(1, firstSongId + generatedSongs++);
+                        insertSong.setInt(2, track);
+                        insertSong.setString(3, titleFor(titles.sample(random) - 1));
+                        insertSong.setLong(4, albumId);
+                        insertSong.addBatch();
+                        pending++;
+                    }
+                }
+
+                if (pending >= batchSize) {
+                    // Parents first, so the batches stay consistent if foreign keys are ever enforced
+                    insertArtist.executeBatch();
+                    insertAlbum.executeBatch();
+                    insertSong.executeBatch();
+                    uncommitted += pending;
+                    pending = 0;
+                    if (uncommitted >= rowsPerTransaction) {
+                        conn.commit();
+                        uncommitted = 0;
+                    }
+                }
+            }
+            insertArtist.executeBatch();
+            insertAlbum.executeBatch();
+            insertSong.executeBatch();
+            conn.commit();
+            Datasource.invalidateNameIndex(conn.getMetaData().getURL());
+
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("PRAGMA synchronous = " + synchronous);
+            }
+        }
+    }
+
+    // The highest _id in a table, 0 if it's empty
+    private static long maxId(Connection conn, String table, String idColumn) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet results = statement.executeQuery("SELECT MAX(" + idColumn + ") FROM " + table)) {
+            return results.next() ? results.getLong(1) : 0; // NULL (empty table) reads as 0
+        }
+    }
+
+    private static int readPragma(Connection conn, String pragma) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet results = statement.executeQuery("PRAGMA " + pragma)) {
+            if (!results.next()) {
+                throw new SQLException("Couldn't read PRAGMA " + pragma);
+            }
+            return results.getInt(1);
+        }
+    }
+
+    // Artist names are unique: a couple of words plus the id
+    private static String artistName(Random random, int artistId) {
+        return "The " + capitalize(WORDS[random.nextInt(WORDS.length)]) + " " +
+                capitalize(WORDS[random.nextInt(WORDS.length)]) + " " + artistId;
+    }
+
+    // The title with the given rank in the title pool
+    // The most popular titles are single words, then pairs of words, then pairs with a number
+    private static String titleFor(int rank) {
+        if (rank < WORDS.length) {
+            return capitalize(WORDS[rank]);
+        }
+        int pair = rank - WORDS.length;
+        String title = capitalize(WORDS[(pair / WORDS.length) % WORDS.length]) + " " + WORDS[pair % WORDS.length];
+        int variant = pair / (WORDS.length * WORDS.length);
+        return variant == 0 ? title : title + " " + (variant + 1);
+    }
+
+    // Most albums are close to the typical length; one in ten is a single or a long compilation
+    // Also used by RowCodecBenchmark, for rows shaped like the generated catalog
+    int tracksPerAlbum(Random random) {
+        if (random.nextInt(10) == 0) {
+            return 1 + random.nextInt(maxTracksPerAlbum);
+        }
+        int tracks = (int) Math.round(typicalTracksPerAlbum + random.nextGaussian() * 2);
+        return Math.max(1, Math.min(maxTracksPerAlbum, tracks));
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+
+    // ******
+    // Zipf distribution over 1..n: value k is drawn with a probability proportional to 1 / k^skew
+    // The cumulative probabilities are computed once, a sample is a binary search (O(log n))
+    // ******
+    static final class ZipfDistribution {
+        private final double[] cumulative;
+
+        ZipfDistribution(int n, double skew) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int k = 1; k <= n; k++) {
+                sum += 1.0 / Math.pow(k, skew);
+                cumulative[k - 1] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        // Returns a value between 1 and n
+        int sample(Random random) {
+            int i = Arrays.binarySearch(cumulative, random.nextDouble());
+            return (i >= 0 ? i : -i - 1) + 1;
+        }
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getArtists() {
+        return artists;
+    }
+
+    public void setArtists(int artists) {
+        this.artists = artists;
+    }
+
+    public int getMaxAlbumsPerArtist() {
+        return maxAlbumsPerArtist;
+    }
+
+    public void setMaxAlbumsPerArtist(int maxAlbumsPerArtist) {
+        this.maxAlbumsPerArtist = maxAlbumsPerArtist;
+    }
+
+    public double getAlbumSkew() {
+        return albumSkew;
+    }
+
+    public void setAlbumSkew(double albumSkew) {
+        this.albumSkew = albumSkew;
+    }
+
+    public int getTypicalTracksPerAlbum() {
+        return typicalTracksPerAlbum;
+    }
+
+    public void setTypicalTracksPerAlbum(int typicalTracksPerAlbum) {
+        this.typicalTracksPerAlbum = typicalTracksPerAlbum;
+    }
+
+    public int getMaxTracksPerAlbum() {
+        return maxTracksPerAlbum;
+    }
+
+    public void setMaxTracksPerAlbum(int maxTracksPerAlbum) {
+        this.maxTracksPerAlbum = maxTracksPerAlbum;
+    }
+
+    public int getTitlePoolSize() {
+        return titlePoolSize;
+    }
+
+    public void setTitlePoolSize(int titlePoolSize) {
+        this.titlePoolSize = titlePoolSize;
+    }
+
+    public double getTitleSkew() {
+        return titleSkew;
+    }
+
+    public void setTitleSkew(double titleSkew) {
+        this.titleSkew = titleSkew;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getRowsPerTransaction() {
+        return rowsPerTransaction;
+    }
+
+    public void setRowsPerTransaction(int rowsPerTransaction) {
+        this.rowsPerTransaction = rowsPerTransaction;
+    }
+
+    public long getGeneratedAlbums() {
+        return generatedAlbums;
+    }
+
+    public long getGeneratedSongs() {
+        return generatedSongs;
+    }
+}
@@ -0,0 +1,97 @@
+package com.pbe.perf;
+
+import java.io.PrintStream;
+
+// *********************
+// Latency histogram
+// *********************
+// Records latencies (in microseconds) in a fixed number of buckets, in the style of an HDR histogram:
+// - values below 128 each get their own bucket (exact)
+// - above that, every power of 2 is split into 64 buckets, so a value is stored with less than 1.6% error
+// This covers everything from 1 microsecond to days in under 4000 buckets (about 30 KB),
+// no matter how many values are recorded, and percentiles can be read at any time.
+//
+// Not thread-safe: give every thread its own histogram and add() them together afterwards.
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;          // 64 buckets per power of 2
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2;            // exact buckets for 0..127
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount;
+    private long maxValue;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucketFor(value)]++;
+        totalCount++;
+        if (value > maxValue) {
+            maxValue = value;
+        }
+    }
+
+    // Add all values of another histogram to this one
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+    // ******
+    // The value below which the given percentage (0-100) of the recorded values fall
+    // ******
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= countAtPercentile) {
+                return Math.min(highestValueIn(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    public void printSummary(String name, PrintStream out) {
+        out.format("%-16s count=%-9d p50=%-8d p90=%-8d p99=%-8d p99.9=%-8d max=%d (us)\n", name, totalCount,
+                getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99),
+                getValueAtPercentile(99.9), maxValue);
+    }
+
+    private static int bucketFor(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        // Shift the value down until it fits in 64..127; the shift tells which power of 2 it's in
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueIn(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
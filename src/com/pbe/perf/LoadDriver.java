@@ -0,0 +1,322 @@
+package com.pbe.perf;
+
+import com.pbe.model.Artist;
+import com.pbe.model.ContentionMetrics;
+import com.pbe.model.Datasource;
+import com.pbe.model.DatasourceException;
+import com.pbe.model.RetryPolicy;
+import com.pbe.model.Song;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// *********************
+// Load test driver
+// *********************
+// Runs a configurable mix of Datasource calls from many threads at the same time,
+// and reports the throughput and latency percentiles per operation.
+//
+// Open-loop rate control
+// A naive load test (a 'closed loop') sends the next request as soon as the previous one returns.
+// When the database stalls, the test then simply stops sending requests, and the stall shows up
+// as one slow request instead of the hundreds of requests that would have queued up in production.
+// This is called 'coordinated omission', and it makes percentiles look much better than they are.
+// Here, every thread has a fixed schedule instead (rate / threads operations per second),
+// and latency is measured from the moment an operation *should* have started.
+// If the database falls behind, the waiting time is counted, just like for a real caller.
+// With rate=0 the driver runs closed-loop (as fast as possible), to find the maximum throughput.
+//
+// Every worker has its own Datasource (and so its own connection), because a SQLite connection
+// can't run two statements at the same time.
+//
+// Usage: LoadDriver key=value ...
+//   db=<database file>             (default: the music.db connection of Datasource)
+//   threads=<n>                    number of workers (default 8)
+//   virtual=true                   run the workers on virtual threads (Java 21+)
+//   rate=<operations per second>   total target rate over all workers, 0 = closed loop (default 1000)
+//   duration=<seconds>             (default 30)
+//   mix=artists:5,albums:30,artistForSong:30,songInfo:30,insert:5   relative weights of the operations
+//   busyTimeout=<ms>               SQLite busy timeout of every worker connection (default 5000)
+//   attempts=<n>                   attempts for a statement that finds the database busy, 1 = no retries (default 5)
+public class LoadDriver {
+
+    public static final String[] OPERATIONS = {"artists", "albums", "artistForSong", "songInfo", "insert"};
+
+    // Maximum number of artists and songs picked from the database as query input
+    private static final int SAMPLE_SIZE = 10_000;
+
+    private String connectionString = Datasource.CONNECTION_STRING;
+    private int threads = 8;
+    private boolean virtualThreads;
+    private double rate = 1000;
+    private int durationSeconds = 30;
+    private final int[] weights = {5, 30, 30, 30, 5};
+    private int busyTimeoutMillis = Datasource.DEFAULT_BUSY_TIMEOUT_MILLIS;
+    private int maxAttempts = RetryPolicy.DEFAULT_MAX_ATTEMPTS;
+
+    // Busy / locked errors and retries of all workers together
+    private final ContentionMetrics contention = new ContentionMetrics();
+
+    // Names used as query input
+    private List<String> artistNames;
+    private List<String> songTitles;
+
+    public static void main(String[] args) throws Exception {
+        LoadDriver driver = new LoadDriver();
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2) {
+                System.out.println("Ignoring argument " + arg);
+                continue;
+            }
+            driver.configure(keyValue[0], keyValue[1]);
+        }
+        driver.run();
+    }
+
+    private void configure(String key, String value) {
+        switch (key) {
+            case "db":
+                connectionString = "jdbc:sqlite:" + value;
+                break;
+            case "threads":
+                threads = Integer.parseInt(value);
+                break;
+            case "virtual":
+                virtualThreads = Boolean.parseBoolean(value);
+                break;
+            case "rate":
+                rate = Double.parseDouble(value);
+                break;
+            case "duration":
+                durationSeconds = Integer.parseInt(value);
+                break;
+            case "mix":
+                for (String part : value.split(",")) {
+                    String[] operationWeight = part.split(":");
+                    weights[operationIndex(operationWeight[0])] = Integer.parseInt(operationWeight[1]);
+                }
+                break;
+            case "busyTimeout":
+                busyTimeoutMillis = Integer.parseInt(value);
+                break;
+            case "attempts":
+                maxAttempts = Integer.parseInt(value);
+                break;
+            default:
+                System.out.println("Unknown setting " + key);
+        }
+    }
+
+    private static int operationIndex(String name) {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (OPERATIONS[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation " + name);
+    }
+
+    // ******
+    // Run the workload and print the report
+    // ******
+    public void run() throws Exception {
+        if (!loadSamples()) {
+            return;
+        }
+        if (virtualThreads && !Threads.virtualThreadsAvailable()) {
+            System.out.println("Virtual threads need Java 21+, using platform threads");
+        }
+        ExecutorService executor = virtualThreads
+                ? Threads.newVirtualOrFixedPool(threads)
+                : Executors.newFixedThreadPool(threads);
+
+        System.out.format("Running %d workers for %d s, %s\n", threads, durationSeconds,
+                rate > 0 ? "target rate " + rate + " ops/s" : "closed loop");
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        List<Future<Worker>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Worker(i, start, end)));
+        }
+
+        // Combine the results of all workers
+        Map<String, LatencyHistogram> histograms = new HashMap<>();
+        long errors = 0;
+        for (Future<Worker> future : futures) {
+            Worker worker = future.get();
+            errors += worker.errors;
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                histograms.computeIfAbsent(OPERATIONS[op], k -> new LatencyHistogram()).add(worker.histograms[op]);
+            }
+        }
+        executor.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        LatencyHistogram all = new LatencyHistogram();
+        for (String operation : OPERATIONS) {
+            LatencyHistogram histogram = histograms.get(operation);
+            all.add(histogram);
+            if (histogram.getTotalCount() > 0) {
+                histogram.printSummary(operation, System.out);
+            }
+        }
+        all.printSummary("all", System.out);
+        System.out.format("Throughput: %.1f ops/s, errors: %d\n", all.getTotalCount() / seconds, errors);
+        contention.printSummary();
+    }
+
+    // Pick artists and songs from the database to use as query input
+    private boolean loadSamples() {
+        Datasource datasource = new Datasource(connectionString);
+        if (!datasource.open()) {
+            System.out.println("Can't open datasource");
+            return false;
+        }
+        try {
+            List<Artist> artists = datasource.queryArtists(Datasource.ORDER_BY_NONE);
+            List<Song> songs = datasource.querySongs();
+            if (artists.isEmpty() || songs.isEmpty()) {
+                System.out.println("No artists or songs to run the workload with");
+                return false;
+            }
+            Random random = new Random(1);
+            artistNames = new ArrayList<>();
+            for (int i = 0; i < Math.min(SAMPLE_SIZE, artists.size()); i++) {
+                artistNames.add(artists.get(random.nextInt(artists.size())).getName());
+            }
+            songTitles = new ArrayList<>();
+            for (int i = 0; i < Math.min(SAMPLE_SIZE, songs.size()); i++) {
+                songTitles.add(songs.get(random.nextInt(songs.size())).getName());
+            }
+            return true;
+        } catch (DatasourceException e) {
+            System.out.println("Couldn't load the workload input: " + e.getMessage());
+            return false;
+        } finally {
+            datasource.close();
+        }
+    }
+
+    // ******
+    // A worker runs operations on its own connection until the end time, and records their latencies
+    // ******
+    private class Worker implements Callable<Worker> {
+        private final int id;
+        private final long start;
+        private final long end;
+        private final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+        private long errors;
+
+        private Worker(int id, long start, long end) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public Worker call() {
+            Datasource datasource = new Datasource(connectionString);
+            datasource.setBusyTimeout(busyTimeoutMillis);
+            datasource.setRetryPolicy(new RetryPolicy(maxAttempts, RetryPolicy.DEFAULT_INITIAL_BACKOFF_MILLIS,
+                    RetryPolicy.DEFAULT_MAX_BACKOFF_MILLIS, RetryPolicy.DEFAULT_MULTIPLIER, RetryPolicy.DEFAULT_JITTER));
+            datasource.setContentionMetrics(contention);
+            if (!datasource.open()) {
+                System.out.println("Worker " + id + " can't open datasource");
+                errors++;
+                return this;
+            }
+
+            Random random = new Random(id);
+            int totalWeight = 0;
+            for (int weight : weights) {
+                totalWeight += weight;
+            }
+            // Every worker does its share of the total rate
+            long intervalNanos = rate > 0 ? (long) (1e9 * threads / rate) : 0;
+            long intended = start;
+
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    if (intervalNanos > 0) {
+                        intended += intervalNanos;
+                        if (intended > now) {
+                            LockSupport.parkNanos(intended - now);
+                        }
+                        // Running late: start right away, the delay is part of the measured latency
+                    } else {
+                        intended = now;
+                    }
+                    if (intended >= end) {
+                        break;
+                    }
+
+                    int operation = pickOperation(random, totalWeight);
+                    boolean ok = execute(datasource, operation, random);
+                    long latencyMicros = (System.nanoTime() - intended) / 1000;
+                    histograms[operation].record(latencyMicros);
+                    if (!ok) {
+                        errors++;
+                    }
+                }
+            } finally {
+                datasource.close();
+            }
+            return this;
+        }
+
+        private int pickOperation(Random random, int totalWeight) {
+            int pick = random.nextInt(totalWeight);
+            for (int i = 0; i < weights.length; i++) {
+                pick -= weights[i];
+                if (pick < 0) {
+                    return i;
+                }
+            }
+            return weights.length - 1;
+        }
+
+        // Returns false if the Datasource call failed
+        private boolean execute(Datasource datasource, int operation, Random random) {
+            String artist = artistNames.get(random.nextInt(artistNames.size()));
+            String song = songTitles.get(random.nextInt(songTitles.size()));
+            try {
+                switch (OPERATIONS[operation]) {
+                    case "artists":
+                        datasource.queryArtists(Datasource.ORDER_BY_ASC);
+                        return true;
+                    case "albums":
+                        datasource.queryAlbumsForArtist(artist, Datasource.ORDER_BY_ASC);
+                        return true;
+                    case "artistForSong":
+                        datasource.queryArtistForSong(song, Datasource.ORDER_BY_ASC);
+                        return true;
+                    case "songInfo":
+                        datasource.querySongInfoView(song);
+                        return true;
+                    case "insert":
+                        return datasource.insertSong("Load test song " + random.nextInt(1_000_000), artist,
+                                "Load test album " + id, random.nextInt(20) + 1);
+                    default:
+                        throw new IllegalStateException("Unknown operation " + operation);
+                }
+            } catch (DatasourceException e) {
+                return false;
+            }
+        }
+    }
+}
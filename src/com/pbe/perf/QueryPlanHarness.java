@@ -0,0 +1,334 @@
+package com.pbe.perf;
+
+import com.pbe.model.Datasource;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+// *********************
+// Query plan regression harness
+// *********************
+// Guards against queries that silently fall back to full table scans, e.g. after a schema change
+// that dropped or renamed an index.
+//
+// For every registered Datasource query, the harness:
+// 1. Captures the plan SQLite picks, via EXPLAIN QUERY PLAN. Each step of the plan is either a
+//    "SEARCH <table> USING ..." (uses an index or the primary key) or a "SCAN <table>" (reads every row).
+// 2. Times the query: a number of warm-up runs, then the median of the measured runs.
+//
+// In 'record' mode these are saved as a baseline (a properties file).
+// In 'check' mode they're compared against the baseline, and the harness fails (exit code 1) if:
+// - a query's plan is different from the baseline in any way, or
+// - a query's median time got slower than the baseline times the allowed factor.
+// A changed plan isn't always a worse one, but it can be worse without an extra full scan: another (less
+// selective) index, a temporary B-tree for the ORDER BY, or a covering index that's no longer covering.
+// So every change fails, with what changed (see describeChange()). If the new plan is intended, record the
+// baseline again.
+//
+// The queries are run the way the Datasource runs them: the same SQL, with the names bound as parameters.
+//
+// Usage: QueryPlanHarness <record|check> <database file> <baseline file> [slowdown factor]
+// An empty database file is filled by the CatalogGenerator first, so the plans are measured at a realistic size.
+public class QueryPlanHarness {
+
+    public static final double DEFAULT_SLOWDOWN_FACTOR = 2.0;
+
+    // Differences below this are measurement noise, not a regression
+    public static final long MIN_REGRESSION_MICROS = 1000;
+
+    public static final int WARMUP_RUNS = 5;
+    public static final int MEASURED_RUNS = 21;
+
+    // Number of artists generated into an empty database (see CatalogGenerator)
+    public static final int GENERATED_ARTISTS = 50_000;
+
+    // A registered query: its SQL and the parameters for its placeholders (if any)
+    private static final class RegisteredQuery {
+        private final String name;
+        private final String sql;
+        private final Object[] parameters;
+
+        private RegisteredQuery(String name, String sql, Object... parameters) {
+            this.name = name;
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+    }
+
+    // What was measured for a query
+    private static final class Measurement {
+        private final String plan;
+        private final long medianMicros;
+
+        private Measurement(String plan, long medianMicros) {
+            this.plan = plan;
+            this.medianMicros = medianMicros;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3 || !(args[0].equals("record") || args[0].equals("check"))) {
+            System.out.println("Usage: QueryPlanHarness <record|check> <database file> <baseline file> [slowdown factor]");
+            System.exit(2);
+        }
+        boolean record = args[0].equals("record");
+        String connectionString = "jdbc:sqlite:" + args[1];
+        String baselineFile = args[2];
+        double slowdownFactor = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_SLOWDOWN_FACTOR;
+
+        if (!prepareDatabase(connectionString)) {
+            System.exit(2);
+        }
+
+        try (Connection conn = DriverManager.getConnection(connectionString)) {
+            Map<String, Measurement> measurements = new LinkedHashMap<>();
+            for (RegisteredQuery query : registeredQueries(conn)) {
+                Measurement measurement = measure(conn, query);
+                measurements.put(query.name, measurement);
+                System.out.format("%-22s %8d us  %s\n", query.name, measurement.medianMicros, measurement.plan);
+            }
+
+            if (record) {
+                saveBaseline(baselineFile, measurements);
+                System.out.println("Baseline saved to " + baselineFile);
+            } else {
+                boolean passed = check(loadBaseline(baselineFile), measurements, slowdownFactor);
+                System.out.println(passed ? "No regressions" : "REGRESSIONS FOUND");
+                if (!passed) {
+                    System.exit(1);
+                }
+            }
+        } catch (SQLException | IOException e) {
+            System.out.println("Harness failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    // ******
+    // Make sure the schema and view exist, and fill the database if it's empty
+    // ******
+    private static boolean prepareDatabase(String connectionString) {
+        // open(true) creates the tables and the view before preparing any statement, so an empty file works too
+        Datasource datasource = new Datasource(connectionString);
+        if (!datasource.open(true)) {
+            System.out.println("Can't open datasource");
+            datasource.close();
+            return false;
+        }
+        try {
+            if (datasource.getCount(Datasource.TABLE_SONGS) > 0) {
+                return true;
+            }
+        } finally {
+            datasource.close();
+        }
+
+        System.out.println("Empty database, generating data...");
+        try (Connection conn = DriverManager.getConnection(connectionString)) {
+            CatalogGenerator generator = new CatalogGenerator();
+            generator.setArtists(GENERATED_ARTISTS);
+            generator.generate(conn);
+            return true;
+        } catch (SQLException e) {
+            System.out.println("Generating data failed: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // ******
+    // The queries under test, filled in with an artist and song that exist in the database
+    // ******
+    private static List<RegisteredQuery> registeredQueries(Connection conn) throws SQLException {
+        String artist = firstValue(conn, "SELECT " + Datasource.COLUMN_ARTIST_NAME + " FROM " +
+                Datasource.TABLE_ARTISTS + " ORDER BY " + Datasource.COLUMN_ARTIST_ID + " DESC LIMIT 1");
+        String song = firstValue(conn, "SELECT " + Datasource.COLUMN_SONG_TITLE + " FROM " +
+                Datasource.TABLE_SONGS + " ORDER BY " + Datasource.COLUMN_SONG_ID + " DESC LIMIT 1");
+
+        List<RegisteredQuery> queries = new ArrayList<>();
+        queries.add(new RegisteredQuery("artists",
+                "SELECT * FROM " + Datasource.TABLE_ARTISTS + " ORDER BY " + Datasource.COLUMN_ARTIST_NAME +
+                        " COLLATE NOCASE ASC"));
+        queries.add(new RegisteredQuery("albumsByArtist",
+                Datasource.QUERY_ALBUMS_BY_ARTIST_START + Datasource.QUERY_ALBUMS_BY_ARTIST_SORT + "ASC", artist));
+        queries.add(new RegisteredQuery("albumsByArtistId",
+                Datasource.QUERY_ALBUMS_BY_ARTIST_ID_START + "?" + Datasource.QUERY_ALBUMS_BY_ARTIST_ID_OR_NAME +
+                        Datasource.QUERY_ALBUMS_BY_ARTIST_ID_SORT + "ASC", 1, artist));
+        queries.add(new RegisteredQuery("artistForSong",
+                Datasource.QUERY_ARTIST_FOR_SONG_START + Datasource.QUERY_ARTIST_FOR_SONG_SORT + "ASC", song));
+        queries.add(new RegisteredQuery("artistForSongId",
+                Datasource.QUERY_ARTIST_FOR_SONG_ID_START + "?" + Datasource.QUERY_ARTIST_FOR_SONG_ID_OR_TITLE +
+                        Datasource.QUERY_ARTIST_FOR_SONG_ID_SORT + "ASC", 1, song));
+        queries.add(new RegisteredQuery("songInfoView", Datasource.QUERY_VIEW_SONG_INFO_PREP, song));
+        queries.add(new RegisteredQuery("artistPopularity", Datasource.QUERY_ARTIST_POPULARITY));
+        queries.add(new RegisteredQuery("songPopularity", Datasource.QUERY_SONG_POPULARITY));
+        return queries;
+    }
+
+    private static String firstValue(Connection conn, String sql) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet results = statement.executeQuery(sql)) {
+            return results.next() ? results.getString(1) : "";
+        }
+    }
+
+    // ******
+    // Capture the plan and the median time of a query
+    // ******
+    private static Measurement measure(Connection conn, RegisteredQuery query) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        try (PreparedStatement statement = conn.prepareStatement("EXPLAIN QUERY PLAN " + query.sql)) {
+            bind(statement, query.parameters);
+            try (ResultSet results = statement.executeQuery()) {
+                while (results.next()) {
+                    if (plan.length() > 0) {
+                        plan.append(" | ");
+                    }
+                    // Columns are: id, parent, notused, detail
+                    plan.append(results.getString(4));
+                }
+            }
+        }
+
+        long[] timings = new long[MEASURED_RUNS];
+        try (PreparedStatement statement = conn.prepareStatement(query.sql)) {
+            bind(statement, query.parameters);
+            for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+                long start = System.nanoTime();
+                try (ResultSet results = statement.executeQuery()) {
+                    while (results.next()) {
+                        // read all rows, as a caller would
+                    }
+                }
+                if (run >= WARMUP_RUNS) {
+                    timings[run - WARMUP_RUNS] = (System.nanoTime() - start) / 1000;
+                }
+            }
+        }
+        Arrays.sort(timings);
+        return new Measurement(plan.toString(), timings[MEASURED_RUNS / 2]);
+    }
+
+    private static void bind(PreparedStatement statement, Object[] parameters) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+    }
+
+    // ******
+    // Compare the measurements against the baseline
+    // ******
+    private static boolean check(Properties baseline, Map<String, Measurement> measurements, double slowdownFactor) {
+        boolean passed = true;
+        for (Map.Entry<String, Measurement> entry : measurements.entrySet()) {
+            String name = entry.getKey();
+            Measurement current = entry.getValue();
+            String baselinePlan = baseline.getProperty(name + ".plan");
+            String baselineMicros = baseline.getProperty(name + ".medianMicros");
+            if (baselinePlan == null || baselineMicros == null) {
+                System.out.println("NEW       " + name + ": not in baseline");
+                continue;
+            }
+
+            if (!baselinePlan.equals(current.plan)) {
+                System.out.println("REGRESSED " + name + ": plan changed (" +
+                        describeChange(baselinePlan, current.plan) + "), record the baseline again if intended");
+                System.out.println("          was: " + baselinePlan);
+                System.out.println("          now: " + current.plan);
+                passed = false;
+            }
+
+            long before = Long.parseLong(baselineMicros);
+            long allowed = Math.max((long) (before * slowdownFactor), before + MIN_REGRESSION_MICROS);
+            if (current.medianMicros > allowed) {
+                System.out.format("REGRESSED %s: median %d us, baseline %d us (allowed %d us)\n",
+                        name, current.medianMicros, before, allowed);
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    // ******
+    // Describe how a plan changed, e.g. "full scans 0 -> 1, temp B-trees 0 -> 1"
+    // ******
+    private static String describeChange(String before, String now) {
+        List<String> changes = new ArrayList<>();
+        describeCount(changes, "full scans", countSteps(before, "SCAN ", true), countSteps(now, "SCAN ", true));
+        describeCount(changes, "temp B-trees", countSteps(before, "USE TEMP B-TREE", false),
+                countSteps(now, "USE TEMP B-TREE", false));
+        describeCount(changes, "covering indexes", countSteps(before, "COVERING INDEX", false),
+                countSteps(now, "COVERING INDEX", false));
+        List<String> indexesBefore = indexNames(before);
+        List<String> indexesNow = indexNames(now);
+        if (!indexesBefore.equals(indexesNow)) {
+            changes.add("indexes " + indexesBefore + " -> " + indexesNow);
+        }
+        return changes.isEmpty() ? "steps differ" : String.join(", ", changes);
+    }
+
+    private static void describeCount(List<String> changes, String what, int before, int now) {
+        if (before != now) {
+            changes.add(what + " " + before + " -> " + now);
+        }
+    }
+
+    // ******
+    // Count the plan steps containing a text
+    // A "SCAN" step reads the whole table, unless it's done via a covering index, so with fullScansOnly
+    // only the steps starting with the text (and not using a covering index) are counted
+    // ******
+    private static int countSteps(String plan, String text, boolean fullScansOnly) {
+        int steps = 0;
+        for (String step : plan.split(" \\| ")) {
+            if (fullScansOnly ? step.startsWith(text) && !step.contains("COVERING INDEX") : step.contains(text)) {
+                steps++;
+            }
+        }
+        return steps;
+    }
+
+    // The indexes the plan uses, in plan order ("USING INDEX name" or "USING COVERING INDEX name")
+    private static List<String> indexNames(String plan) {
+        List<String> names = new ArrayList<>();
+        for (String step : plan.split(" \\| ")) {
+            int at = step.indexOf("INDEX ");
+            if (at >= 0 && step.contains("USING ")) {
+                String rest = step.substring(at + "INDEX ".length());
+                int end = rest.indexOf(' ');
+                names.add(end >= 0 ? rest.substring(0, end) : rest);
+            }
+        }
+        return names;
+    }
+
+    private static void saveBaseline(String file, Map<String, Measurement> measurements) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Measurement> entry : measurements.entrySet()) {
+            properties.setProperty(entry.getKey() + ".plan", entry.getValue().plan);
+            properties.setProperty(entry.getKey() + ".medianMicros", Long.toString(entry.getValue().medianMicros));
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "Query plan baseline");
+        }
+    }
+
+    private static Properties loadBaseline(String file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+}
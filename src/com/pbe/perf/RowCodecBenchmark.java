@@ -0,0 +1,129 @@
+package com.pbe.perf;
+
+import com.pbe.model.RowCodec;
+import com.pbe.model.SongArtist;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// *********************
+// Row encoding benchmark
+// *********************
+// Compares three ways of holding a cached List<SongArtist>:
+// 1. Plain Java objects (heap footprint measured by filling the heap with copies)
+// 2. Java serialization (ObjectOutputStream)
+// 3. RowCodec
+// For each, the size per row and the time to encode and decode a list are reported.
+// The rows are skewed like the synthetic catalog (see CatalogGenerator): the albums per artist follow its Zipf
+// distribution and the tracks per album its album lengths, so how often a name repeats (and with that, how much
+// the RowCodec dictionary saves) is like in a real result.
+//
+// Usage: RowCodecBenchmark [rows per list] [iterations]
+public class RowCodecBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        List<SongArtist> list = sampleRows(rows, new Random(42));
+
+        System.out.format("Plain objects:      %6.1f bytes/row (heap)\n", heapBytesPerRow(rows));
+
+        byte[] serialized = javaSerialize(list);
+        byte[] encoded = RowCodec.encode(list);
+        System.out.format("Java serialization: %6.1f bytes/row\n", (double) serialized.length / rows);
+        System.out.format("RowCodec:           %6.1f bytes/row\n", (double) encoded.length / rows);
+
+        // Warm up both, so the JIT has compiled them before measuring
+        for (int i = 0; i < iterations; i++) {
+            javaDeserialize(javaSerialize(list));
+            RowCodec.decode(RowCodec.encode(list));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            serialized = javaSerialize(list);
+        }
+        long javaEncode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            javaDeserialize(serialized);
+        }
+        long javaDecode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            encoded = RowCodec.encode(list);
+        }
+        long codecEncode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            RowCodec.decode(encoded);
+        }
+        long codecDecode = System.nanoTime() - start;
+
+        System.out.format("Java serialization: encode %7.1f us/list, decode %7.1f us/list\n",
+                javaEncode / 1000.0 / iterations, javaDecode / 1000.0 / iterations);
+        System.out.format("RowCodec:           encode %7.1f us/list, decode %7.1f us/list\n",
+                codecEncode / 1000.0 / iterations, codecDecode / 1000.0 / iterations);
+    }
+
+    // Rows as the synthetic catalog has them: artist after artist, each with its albums, each album with its tracks
+    private static List<SongArtist> sampleRows(int rows, Random random) {
+        CatalogGenerator catalog = new CatalogGenerator();
+        CatalogGenerator.ZipfDistribution albumsPerArtist =
+                new CatalogGenerator.ZipfDistribution(catalog.getMaxAlbumsPerArtist(), catalog.getAlbumSkew());
+        List<SongArtist> list = new ArrayList<>(rows);
+        for (int artist = 1; list.size() < rows; artist++) {
+            int albums = albumsPerArtist.sample(random);
+            for (int album = 1; album <= albums && list.size() < rows; album++) {
+                int tracks = catalog.tracksPerAlbum(random);
+                for (int track = 1; track <= tracks && list.size() < rows; track++) {
+                    SongArtist songArtist = new SongArtist();
+                    songArtist.setArtistName("Artist number " + artist);
+                    songArtist.setAlbumName("Album " + artist + "-" + album);
+                    songArtist.setTrack(track);
+                    list.add(songArtist);
+                }
+            }
+        }
+        return list;
+    }
+
+    // Estimate the heap used per row, by keeping many freshly built lists alive and measuring the heap growth
+    // Every list gets its own String objects, as it would when read from a ResultSet
+    private static double heapBytesPerRow(int rows) {
+        int copies = Math.max(1, 200_000 / rows);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        List<List<SongArtist>> keep = new ArrayList<>(copies);
+        for (int c = 0; c < copies; c++) {
+            keep.add(sampleRows(rows, new Random(c)));
+        }
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        double perRow = (double) (after - before) / ((long) copies * rows);
+        return keep.isEmpty() ? 0 : perRow;
+    }
+
+    private static byte[] javaSerialize(List<SongArtist> list) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new ArrayList<>(list));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object javaDeserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.pbe.perf;
+
+import com.pbe.model.Datasource;
+import com.pbe.model.DatasourceException;
+import com.pbe.model.StartupTimer;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+// *********************
+// Startup benchmark
+// *********************
+// Compares the two ways of opening a Datasource:
+// - open(): everything on the calling thread, including building the name index from all artists and songs
+// - openAsync(): connect, check the schema, prepare the statements and build the name index in the background
+// For both it measures the time until the first query result (a song info lookup, which only needs the
+// connection, the schema check and its own prepared statement) and until the datasource is completely ready.
+// The step timings of the last run are printed too.
+//
+// Usage: StartupBenchmark [database file] [runs]
+public class StartupBenchmark {
+
+    public static void main(String[] args) {
+        String connectionString = args.length > 0 ? "jdbc:sqlite:" + args[0] : Datasource.CONNECTION_STRING;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        // One run of each first, so class loading and the JIT don't count against the first mode measured
+        measure(connectionString, false, new double[1], new double[1], 0);
+        measure(connectionString, true, new double[1], new double[1], 0);
+
+        for (boolean async : new boolean[]{false, true}) {
+            double[] firstResult = new double[runs];
+            double[] ready = new double[runs];
+            StartupTimer last = null;
+            for (int run = 0; run < runs; run++) {
+                last = measure(connectionString, async, firstResult, ready, run);
+                if (last == null) {
+                    return;
+                }
+            }
+            System.out.format("%-10s first result %7.1f ms, ready %7.1f ms (median of %d)\n",
+                    async ? "openAsync" : "open", median(firstResult), median(ready), runs);
+            last.printSummary();
+        }
+    }
+
+    // Returns the step timings, or null if the datasource couldn't be opened
+    private static StartupTimer measure(String connectionString, boolean async,
+                                        double[] firstResult, double[] ready, int run) {
+        long start = System.nanoTime();
+        Datasource datasource = new Datasource(connectionString);
+        try {
+            CompletableFuture<Boolean> opened;
+            if (async) {
+                opened = datasource.openAsync();
+            } else {
+                opened = CompletableFuture.completedFuture(datasource.open());
+            }
+
+            datasource.querySongInfoView("Heartless");
+            firstResult[run] = (System.nanoTime() - start) / 1e6;
+
+            if (!opened.join()) {
+                System.out.println("Can't open datasource");
+                return null;
+            }
+            ready[run] = (System.nanoTime() - start) / 1e6;
+            return datasource.getStartupTimer();
+
+        } catch (DatasourceException e) {
+            System.out.println("Query failed: " + e.getMessage());
+            return null;
+        } finally {
+            datasource.close();
+        }
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,37 @@
+package com.pbe.perf;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// *********************
+// Thread helpers
+// *********************
+// Virtual threads (cheap threads managed by the JVM instead of the OS) are only available from Java 21.
+// This project is built with an older JDK, so they're looked up via reflection:
+// on Java 21+ a virtual thread executor is used, otherwise it falls back to a pool of platform threads.
+public class Threads {
+
+    private Threads() {
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // ******
+    // Executor running every task on its own virtual thread,
+    // or a fixed pool of platform threads if virtual threads aren't available
+    // ******
+    public static ExecutorService newVirtualOrFixedPool(int platformThreads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(platformThreads);
+        }
+    }
+}
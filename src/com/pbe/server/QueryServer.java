@@ -0,0 +1,315 @@
+package com.pbe.server;
+
+import com.pbe.model.Artist;
+import com.pbe.model.DatabaseBusyException;
+import com.pbe.model.Datasource;
+import com.pbe.model.DatasourceException;
+import com.pbe.model.SingleFlight;
+import com.pbe.model.SongArtist;
+import com.pbe.perf.Threads;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// *********************
+// HTTP query service
+// *********************
+// Makes the catalog available to other services over HTTP, with JSON responses.
+// Uses the HTTP server that comes with the JDK (com.sun.net.httpserver), so no extra libraries are needed.
+//
+// Endpoints (all GET, order is asc, desc or none and defaults to asc):
+//   /artists?order=asc
+//   /albums?artist=Pink Floyd&order=asc
+//   /artist-for-song?title=She's On Fire&order=asc
+//   /song-info?title=She's On Fire
+//
+// Connection-aware concurrency
+// A SQLite connection runs one statement at a time, so the server keeps a pool of Datasources
+// (each with its own connection). A request borrows one for the duration of its query.
+// Requests are handled on virtual threads (Java 21+, platform threads otherwise), so waiting for
+// a free connection is cheap; if none becomes free in time, the request gets a 503 instead of piling up.
+//
+// Request coalescing
+// Identical lookups that arrive while the first one is still running don't run their own query:
+// they wait for, and share, the result of the one that's already in flight.
+//
+// Responses
+// The rows of a query are read into a list first: coalesced requests share that list, and the connection goes
+// back to the pool before the response is written, so a slow client doesn't hold it. Only the JSON is written
+// incrementally (chunked, one row at a time), so the JSON document is never built up in memory as well.
+// The first byte goes out after the last row was read, so this doesn't lower the time to first byte.
+//
+// Usage: QueryServer [port] [connections] [database file]
+public class QueryServer {
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_CONNECTIONS = 4;
+    public static final long CONNECTION_WAIT_MILLIS = 2_000;
+
+    private final int port;
+    private final String connectionString;
+    private final BlockingQueue<Datasource> pool;
+    private final SingleFlight<List<?>> inFlight = new SingleFlight<>();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public QueryServer(int port, int connections, String connectionString) {
+        this.port = port;
+        this.connectionString = connectionString;
+        this.pool = new ArrayBlockingQueue<>(connections);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONNECTIONS;
+        String connectionString = args.length > 2 ? "jdbc:sqlite:" + args[2] : Datasource.CONNECTION_STRING;
+
+        QueryServer queryServer = new QueryServer(port, connections, connectionString);
+        if (!queryServer.start()) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(queryServer::stop));
+        System.out.println("Query server listening on port " + port);
+    }
+
+    // ******
+    // Open the connections and start listening
+    // ******
+    public boolean start() throws IOException {
+        int connections = pool.remainingCapacity();
+        for (int i = 0; i < connections; i++) {
+            Datasource datasource = new Datasource(connectionString);
+            if (!datasource.open()) {
+                System.out.println("Can't open datasource");
+                stop();
+                return false;
+            }
+            pool.add(datasource);
+        }
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/artists", exchange -> handle(exchange, "artists"));
+        server.createContext("/albums", exchange -> handle(exchange, "albums"));
+        server.createContext("/artist-for-song", exchange -> handle(exchange, "artist-for-song"));
+        server.createContext("/song-info", exchange -> handle(exchange, "song-info"));
+        executor = Threads.newVirtualOrFixedPool(connections * 4);
+        server.setExecutor(executor);
+        server.start();
+        return true;
+    }
+
+    // Number of requests that shared the result of an identical request
+    public long getCoalescedRequests() {
+        return inFlight.getCollapsed();
+    }
+
+    public void stop() {
+        if (server != null) {
+            System.out.format("Handled %d lookups, %d coalesced\n", inFlight.getCalls(), inFlight.getCollapsed());
+            server.stop(1);
+            server = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        Datasource datasource;
+        while ((datasource = pool.poll()) != null) {
+            datasource.close();
+        }
+    }
+
+    private void handle(HttpExchange exchange, String endpoint) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendError(exchange, 405, "Only GET is supported");
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            int sortOrder = parseOrder(params.get("order"));
+
+            String name = endpoint.equals("albums") ? params.get("artist")
+                    : endpoint.equals("artists") ? null : params.get("title");
+            if (name == null && !endpoint.equals("artists")) {
+                sendError(exchange, 400, "Missing parameter " + (endpoint.equals("albums") ? "artist" : "title"));
+                return;
+            }
+
+            // Run the query, or join an identical query that's already running
+            List<?> result = inFlight.execute(endpoint + '|' + sortOrder + '|' + name,
+                    () -> query(endpoint, name, sortOrder));
+            if (result == null) {
+                sendError(exchange, 503, "No connection available");
+                return;
+            }
+            sendJson(exchange, result);
+
+        } catch (DatabaseBusyException e) {
+            sendError(exchange, 503, "Database busy, try again later");
+        } catch (DatasourceException e) {
+            sendError(exchange, 500, "Query failed: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Borrow a connection from the pool and run the query on it
+    private List<?> query(String endpoint, String name, int sortOrder) {
+        Datasource datasource;
+        try {
+            datasource = pool.poll(CONNECTION_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (datasource == null) {
+            return null;
+        }
+        try {
+            switch (endpoint) {
+                case "artists":
+                    return datasource.queryArtists(sortOrder);
+                case "albums":
+                    return datasource.queryAlbumsForArtist(name, sortOrder);
+                case "artist-for-song":
+                    return datasource.queryArtistForSong(name, sortOrder);
+                default:
+                    return datasource.querySongInfoView(name);
+            }
+        } finally {
+            pool.add(datasource);
+        }
+    }
+
+    // ******
+    // Write the rows as a JSON array, one row at a time
+    // The rows are all in memory already (see the class comment), only the JSON text isn't
+    // ******
+    private static void sendJson(HttpExchange exchange, List<?> rows) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0); // length 0 means: chunked, length not known up front
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+            out.write('[');
+            boolean first = true;
+            for (Object row : rows) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                writeRow(out, row);
+            }
+            out.write(']');
+        }
+    }
+
+    private static void writeRow(Writer out, Object row) throws IOException {
+        if (row instanceof Artist) {
+            Artist artist = (Artist) row;
+            out.write("{\"id\":" + artist.getId() + ",\"name\":");
+            writeString(out, artist.getName());
+            out.write('}');
+        } else if (row instanceof SongArtist) {
+            SongArtist songArtist = (SongArtist) row;
+            out.write("{\"artist\":");
+            writeString(out, songArtist.getArtistName());
+            out.write(",\"album\":");
+            writeString(out, songArtist.getAlbumName());
+            out.write(",\"track\":" + songArtist.getTrack() + "}");
+        } else {
+            writeString(out, String.valueOf(row));
+        }
+    }
+
+    private static void writeString(Writer out, String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        // Escaped like any other string in a response: exception messages can contain quotes, backslashes, newlines...
+        StringWriter json = new StringWriter();
+        json.write("{\"error\":");
+        writeString(json, message);
+        json.write('}');
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static int parseOrder(String order) {
+        if (order == null || order.equals("asc")) {
+            return Datasource.ORDER_BY_ASC;
+        }
+        if (order.equals("desc")) {
+            return Datasource.ORDER_BY_DESC;
+        }
+        if (order.equals("none")) {
+            return Datasource.ORDER_BY_NONE;
+        }
+        throw new IllegalArgumentException("order must be asc, desc or none");
+    }
+}
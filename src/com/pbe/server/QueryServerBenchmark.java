@@ -0,0 +1,76 @@
+package com.pbe.server;
+
+import com.pbe.perf.LatencyHistogram;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// *********************
+// Query server benchmark client
+// *********************
+// Sends requests to a running QueryServer from a number of concurrent clients, and reports latency percentiles.
+// Half of the requests look up the same song, to show the effect of request coalescing;
+// the other half are spread over the given artists.
+// The latency is measured until the complete response has been read: the server reads all rows before it sends
+// the first byte (see QueryServer), so there's no separate time to first byte worth reporting.
+//
+// Usage: QueryServerBenchmark [base url] [clients] [requests per client] [artist,artist,...]
+public class QueryServerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:" + QueryServer.DEFAULT_PORT;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        String[] artists = args.length > 3 ? args[3].split(",") : new String[]{"Pink Floyd", "Aerosmith", "Deep Purple"};
+
+        HttpClient client = HttpClient.newHttpClient();
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+
+        long start = System.nanoTime();
+        List<Future<LatencyHistogram>> futures = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int clientId = c;
+            Callable<LatencyHistogram> task = () -> {
+                LatencyHistogram histogram = new LatencyHistogram();
+                for (int i = 0; i < requests; i++) {
+                    String path = i % 2 == 0
+                            ? "/song-info?title=" + encode("She's On Fire")
+                            : "/albums?artist=" + encode(artists[(clientId + i) % artists.length]);
+                    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path)).GET().build();
+                    long requestStart = System.nanoTime();
+                    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                    histogram.record((System.nanoTime() - requestStart) / 1000);
+                    if (response.statusCode() != 200) {
+                        System.out.println("HTTP " + response.statusCode() + " for " + path);
+                    }
+                }
+                return histogram;
+            };
+            futures.add(executor.submit(task));
+        }
+
+        LatencyHistogram all = new LatencyHistogram();
+        for (Future<LatencyHistogram> future : futures) {
+            all.add(future.get());
+        }
+        executor.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        all.printSummary("complete responses", System.out);
+        System.out.format("Throughput: %.1f requests/s\n", all.getTotalCount() / seconds);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}